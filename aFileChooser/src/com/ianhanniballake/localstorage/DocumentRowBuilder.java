@@ -0,0 +1,179 @@
+
+package com.ianhanniballake.localstorage;
+
+import android.database.MatrixCursor;
+import android.provider.DocumentsContract.Document;
+
+import com.ipaulpro.afilechooser.utils.DirectorySizer;
+import com.ipaulpro.afilechooser.utils.FileEntry;
+import com.ipaulpro.afilechooser.utils.FileUtils;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Builds document rows for {@link LocalStorageProvider}, filling only the
+ * columns of the requested projection. Rows are built from {@link FileEntry}s,
+ * whose attributes were read once when the directory was scanned, so the only
+ * lookup left per row is the write check, and only if COLUMN_FLAGS was
+ * requested.
+ */
+class DocumentRowBuilder {
+
+    /** Number of write checks made by all builders. */
+    private static final AtomicLong sStatCount = new AtomicLong();
+
+    private final String[] mColumns;
+    private final boolean mSniffMimeTypes;
+    private final int mDocumentIdIndex;
+    private final int mDisplayNameIndex;
+    private final int mMimeTypeIndex;
+    private final int mFlagsIndex;
+    private final int mSizeIndex;
+    private final int mLastModifiedIndex;
+    private DirectorySizer mDirectorySizer;
+    private DirectorySizer.Callback mDirectorySizeCallback;
+
+    /**
+     * @param projection The requested columns. Unknown columns are left null.
+     * @param sniffMimeTypes Whether documents whose name has no known
+     *            extension are typed from their content.
+     */
+    DocumentRowBuilder(final String[] projection, final boolean sniffMimeTypes) {
+        mColumns = projection;
+        mSniffMimeTypes = sniffMimeTypes;
+        mDocumentIdIndex = indexOf(projection, Document.COLUMN_DOCUMENT_ID);
+        mDisplayNameIndex = indexOf(projection, Document.COLUMN_DISPLAY_NAME);
+        mMimeTypeIndex = indexOf(projection, Document.COLUMN_MIME_TYPE);
+        mFlagsIndex = indexOf(projection, Document.COLUMN_FLAGS);
+        mSizeIndex = indexOf(projection, Document.COLUMN_SIZE);
+        mLastModifiedIndex = indexOf(projection, Document.COLUMN_LAST_MODIFIED);
+    }
+
+    /**
+     * Report the total size of directories, as far as it is known. Unknown
+     * sizes are left null and computed in the background.
+     *
+     * @param sizer The sizer holding the known sizes.
+     * @param callback The callback to call once an unknown size is computed.
+     */
+    void setDirectorySizer(final DirectorySizer sizer, final DirectorySizer.Callback callback) {
+        mDirectorySizer = sizer;
+        mDirectorySizeCallback = callback;
+    }
+
+    /**
+     * @return The columns of the rows.
+     */
+    String[] getColumns() {
+        return mColumns;
+    }
+
+    /**
+     * @return Whether the size or modification time was requested, so entries
+     *         must be read with their attributes.
+     */
+    boolean needsAttributes() {
+        return mSizeIndex >= 0 || mLastModifiedIndex >= 0;
+    }
+
+    /**
+     * Add a row for a file.
+     *
+     * @param result The cursor to add the row to, created with
+     *            {@link #getColumns()}.
+     * @param entry The file, read with attributes if {@link #needsAttributes()}.
+     */
+    void addRow(final MatrixCursor result, final FileEntry entry) {
+        result.addRow(buildRow(entry));
+    }
+
+    /**
+     * Build the values of a row for a file.
+     *
+     * @param entry The file, read with attributes if {@link #needsAttributes()}.
+     * @return The value of each of {@link #getColumns()}, null for columns
+     *         that are not known.
+     */
+    Object[] buildRow(final FileEntry entry) {
+        final Object[] row = new Object[mColumns.length];
+        if (mDocumentIdIndex >= 0)
+            row[mDocumentIdIndex] = entry.getPath();
+        if (mDisplayNameIndex >= 0)
+            row[mDisplayNameIndex] = entry.getName();
+        if (mMimeTypeIndex >= 0 || mFlagsIndex >= 0) {
+            final String mimeType = getMimeType(entry, mSniffMimeTypes);
+            if (mMimeTypeIndex >= 0)
+                row[mMimeTypeIndex] = mimeType;
+            if (mFlagsIndex >= 0) {
+                sStatCount.incrementAndGet();
+                int flags = entry.getFile().canWrite() ? Document.FLAG_SUPPORTS_DELETE
+                        | Document.FLAG_SUPPORTS_WRITE : 0;
+                // We only show thumbnails for image files - expect a call to
+                // openDocumentThumbnail for each file that has this flag set
+                if (mimeType.startsWith("image/"))
+                    flags |= Document.FLAG_SUPPORTS_THUMBNAIL;
+                row[mFlagsIndex] = flags;
+            }
+        }
+        // COLUMN_SIZE is required, but can be null; it is for directories
+        // whose size isn't known yet
+        if (mSizeIndex >= 0) {
+            if (!entry.isDirectory()) {
+                row[mSizeIndex] = entry.length();
+            } else if (mDirectorySizer != null) {
+                final long size = mDirectorySizer.getCachedSize(entry.getFile(),
+                        entry.lastModified());
+                if (size >= 0)
+                    row[mSizeIndex] = size;
+                else
+                    mDirectorySizer.computeSize(entry.getFile(), mDirectorySizeCallback);
+            }
+        }
+        if (mLastModifiedIndex >= 0)
+            row[mLastModifiedIndex] = entry.lastModified();
+        return row;
+    }
+
+    /**
+     * Get the MIME type of a document from its name, or from its content if
+     * sniffMimeTypes and the name has no known extension.
+     *
+     * @param entry The document.
+     * @param sniffMimeTypes Whether to type the document from its content.
+     * @return The MIME type of the document.
+     */
+    static String getMimeType(final FileEntry entry, final boolean sniffMimeTypes) {
+        if (entry.isDirectory())
+            return Document.MIME_TYPE_DIR;
+        final String mime = FileUtils.getMimeType(entry, sniffMimeTypes);
+        if (mime != null) {
+            return mime;
+        }
+        return "application/octet-stream";
+    }
+
+    /**
+     * @return The number of write checks made by all builders since the last
+     *         call to {@link #resetStatCount()}. Add
+     *         DirectoryScanner.getStatCount() for the total lookups per
+     *         listing.
+     */
+    static long getStatCount() {
+        return sStatCount.get();
+    }
+
+    /**
+     * Reset the write check counter.
+     */
+    static void resetStatCount() {
+        sStatCount.set(0);
+    }
+
+    private static int indexOf(final String[] columns, final String column) {
+        for (int i = 0; i < columns.length; i++) {
+            if (column.equals(columns[i]))
+                return i;
+        }
+        return -1;
+    }
+}
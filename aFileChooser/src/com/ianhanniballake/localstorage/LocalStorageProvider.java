@@ -1,39 +1,72 @@
 
 package com.ianhanniballake.localstorage;
 
+import android.content.BroadcastReceiver;
+import android.content.ContentResolver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
 import android.content.res.AssetFileDescriptor;
+import android.content.res.Resources;
 import android.database.Cursor;
 import android.database.MatrixCursor;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.graphics.Point;
+import android.os.AsyncTask;
 import android.os.CancellationSignal;
-import android.os.Environment;
+import android.os.Handler;
+import android.os.Looper;
 import android.os.ParcelFileDescriptor;
+import android.provider.DocumentsContract;
 import android.provider.DocumentsContract.Document;
 import android.provider.DocumentsContract.Root;
 import android.provider.DocumentsProvider;
+import android.support.v4.util.LruCache;
 import android.util.Log;
-import android.webkit.MimeTypeMap;
 
+import com.ipaulpro.afilechooser.DirectoryCache;
+import com.ipaulpro.afilechooser.DirectoryWatcher;
 import com.ipaulpro.afilechooser.R;
+import com.ipaulpro.afilechooser.utils.DirectoryScanner;
+import com.ipaulpro.afilechooser.utils.DirectorySizer;
+import com.ipaulpro.afilechooser.utils.DiskCache;
+import com.ipaulpro.afilechooser.utils.FileEntry;
+import com.ipaulpro.afilechooser.utils.FileSorter;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.Callable;
 
 public class LocalStorageProvider extends DocumentsProvider {
 
     public static final String AUTHORITY = "com.ianhanniballake.localstorage.documents";
 
+    private static final String THUMBNAIL_CACHE_DIR = "documentThumbnails";
+    private static final long THUMBNAIL_CACHE_BYTES = 20 * 1024 * 1024;
+    private static final int THUMBNAIL_THREADS = 2;
+    private static final int SORTED_NAMES_CACHE_ENTRIES = 20000;
+    private static final int THUMBNAIL_KEYS_CACHE_ENTRIES = 1000;
+    private static final String SEARCH_INDEX_FILE = "fileIndex";
+    private static final int SEARCH_RESULT_LIMIT = 200;
+    private static final int RECENT_DOCUMENTS_LIMIT = SearchIndex.RECENT_FILES;
+    private static final long NOTIFY_DELAY_MILLIS = 500;
+
     /**
      * Default root projection: everything but Root.COLUMN_MIME_TYPES
      */
     private final static String[] DEFAULT_ROOT_PROJECTION = new String[] {
             Root.COLUMN_ROOT_ID,
             Root.COLUMN_FLAGS, Root.COLUMN_TITLE, Root.COLUMN_DOCUMENT_ID, Root.COLUMN_ICON,
-            Root.COLUMN_AVAILABLE_BYTES
+            Root.COLUMN_AVAILABLE_BYTES, Root.COLUMN_SUMMARY
     };
     /**
      * Default document projection: everything but Document.COLUMN_ICON and
@@ -46,36 +79,175 @@ public class LocalStorageProvider extends DocumentsProvider {
             Document.COLUMN_LAST_MODIFIED
     };
 
+    private final ThumbnailExecutor mThumbnailExecutor = new ThumbnailExecutor(THUMBNAIL_THREADS);
+    private DiskCache mThumbnailCache;
+    /** Search indexes by root id. */
+    private final HashMap<String, SearchIndex> mSearchIndexes = new HashMap<String, SearchIndex>();
+    private StorageRoots mStorageRoots;
+    private final DirectorySizer mDirectorySizer = new DirectorySizer(Runtime.getRuntime()
+            .availableProcessors());
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    /** Parents whose children will be notified as changed. */
+    private final HashSet<String> mPendingNotifications = new HashSet<String>();
+    private final DirectorySizer.Callback mDirectorySizeCallback = new DirectorySizer.Callback() {
+        @Override
+        public void onSizeComputed(final File dir, final long bytes) {
+            notifyChildrenChanged(dir.getParent());
+        }
+    };
+    /**
+     * The cache key last used for each recently thumbnailed document and size
+     * bucket. A thumbnail whose key was dropped is left to the DiskCache to
+     * evict.
+     */
+    private final LruCache<String, String> mThumbnailKeys = new LruCache<String, String>(
+            THUMBNAIL_KEYS_CACHE_ENTRIES);
+    private Bitmap.CompressFormat mThumbnailFormat = Bitmap.CompressFormat.JPEG;
+    private int mThumbnailQuality;
+    private boolean mStreamThumbnails;
+    private boolean mSniffMimeTypes;
+    /**
+     * Sorted child names, keyed by parent and sort order, bounded by the
+     * total number of names. Each is dropped as soon as its parent or any
+     * child changes, as a change in place alters size and date orders without
+     * touching the parent's modification time.
+     */
+    private final LruCache<String, SortedNames> mSortedNames = new LruCache<String, SortedNames>(
+            SORTED_NAMES_CACHE_ENTRIES) {
+        @Override
+        protected int sizeOf(final String key, final SortedNames sorted) {
+            return sorted.names.length + 1;
+        }
+
+        @Override
+        protected void entryRemoved(final boolean evicted, final String key,
+                final SortedNames oldValue, final SortedNames newValue) {
+            DirectoryWatcher.unwatch(oldValue.parent, oldValue);
+        }
+    };
+
+    /**
+     * The sorted child names of a directory, watched while they are cached.
+     */
+    private class SortedNames implements DirectoryWatcher.Listener {
+        final String key;
+        final String parent;
+        String[] names;
+        volatile boolean changed;
+
+        SortedNames(final String key, final String parent) {
+            this.key = key;
+            this.parent = parent;
+        }
+
+        @Override
+        public void onDirectoryChanged(final String path) {
+            changed = true;
+            mSortedNames.remove(key);
+        }
+    }
+
     @Override
     public Cursor queryRoots(final String[] projection) throws FileNotFoundException {
         // Create a cursor with either the requested fields, or the default
         // projection if "projection" is null.
         final MatrixCursor result = new MatrixCursor(projection != null ? projection
                 : DEFAULT_ROOT_PROJECTION);
-        // Add Home directory
-        File homeDir = Environment.getExternalStorageDirectory();
-        final MatrixCursor.RowBuilder row = result.newRow();
-        // These columns are required
-        row.add(Root.COLUMN_ROOT_ID, homeDir.getAbsolutePath());
-        row.add(Root.COLUMN_DOCUMENT_ID, homeDir.getAbsolutePath());
-        row.add(Root.COLUMN_TITLE, getContext().getString(R.string.internal_storage));
-        row.add(Root.COLUMN_FLAGS, Root.FLAG_LOCAL_ONLY | Root.FLAG_SUPPORTS_CREATE);
-        row.add(Root.COLUMN_ICON, R.drawable.ic_provider);
-        // These columns are optional
-        row.add(Root.COLUMN_AVAILABLE_BYTES, homeDir.getFreeSpace());
-        // Root.COLUMN_MIME_TYPE is another optional column and useful if you
-        // have multiple roots with different
-        // types of mime types (roots that don't match the requested mime type
-        // are automatically hidden)
+        // Add a root for each mounted volume, Home directory first
+        for (StorageRoots.Volume volume : mStorageRoots.getVolumes()) {
+            final MatrixCursor.RowBuilder row = result.newRow();
+            // These columns are required
+            row.add(Root.COLUMN_ROOT_ID, volume.getRootId());
+            row.add(Root.COLUMN_DOCUMENT_ID, volume.getRootId());
+            row.add(Root.COLUMN_TITLE, getContext().getString(volume.primary
+                    ? R.string.internal_storage : R.string.external_storage));
+            int flags = Root.FLAG_LOCAL_ONLY | Root.FLAG_SUPPORTS_SEARCH
+                    | Root.FLAG_SUPPORTS_RECENTS;
+            if (volume.writable)
+                flags |= Root.FLAG_SUPPORTS_CREATE;
+            row.add(Root.COLUMN_FLAGS, flags);
+            row.add(Root.COLUMN_ICON, R.drawable.ic_provider);
+            // These columns are optional
+            row.add(Root.COLUMN_AVAILABLE_BYTES, volume.getAvailableBytes());
+            // Secondary volumes share a title, so each is told apart by the
+            // name of its mount point
+            if (!volume.primary)
+                row.add(Root.COLUMN_SUMMARY, volume.directory.getName());
+            // Root.COLUMN_MIME_TYPE is another optional column and useful if you
+            // have multiple roots with different
+            // types of mime types (roots that don't match the requested mime type
+            // are automatically hidden)
+        }
+        // Start loading the search indexes, since a search or a request for
+        // recent documents may follow
+        for (StorageRoots.Volume volume : mStorageRoots.getVolumes())
+            getSearchIndex(volume.getRootId());
+        return result;
+    }
+
+    @Override
+    public Cursor querySearchDocuments(final String rootId, final String query,
+            final String[] projection) throws FileNotFoundException {
+        // Create a cursor with either the requested fields, or the default
+        // projection if "projection" is null.
+        final DocumentRowBuilder builder = new DocumentRowBuilder(projection != null ? projection
+                : DEFAULT_DOCUMENT_PROJECTION, mSniffMimeTypes);
+        final List<String> paths = getSearchIndex(rootId).search(query, SEARCH_RESULT_LIMIT);
+        final MatrixCursor result = new MatrixCursor(builder.getColumns(), paths.size());
+        for (String path : paths) {
+            final File file = new File(path);
+            // The index may be older than the last change
+            if (file.exists())
+                builder.addRow(result, DirectoryScanner.readEntry(file,
+                        builder.needsAttributes()));
+        }
         return result;
     }
 
+    @Override
+    public Cursor queryRecentDocuments(final String rootId, final String[] projection)
+            throws FileNotFoundException {
+        // Create a cursor with either the requested fields, or the default
+        // projection if "projection" is null.
+        final DocumentRowBuilder builder = new DocumentRowBuilder(projection != null ? projection
+                : DEFAULT_DOCUMENT_PROJECTION, mSniffMimeTypes);
+        final List<String> paths = getSearchIndex(rootId).getRecentFiles(RECENT_DOCUMENTS_LIMIT);
+        final MatrixCursor result = new MatrixCursor(builder.getColumns(), paths.size());
+        for (String path : paths) {
+            final File file = new File(path);
+            // The index may be older than the last change
+            if (file.exists())
+                builder.addRow(result, DirectoryScanner.readEntry(file,
+                        builder.needsAttributes()));
+        }
+        return result;
+    }
+
+    private synchronized SearchIndex getSearchIndex(final String rootId) {
+        SearchIndex index = mSearchIndexes.get(rootId);
+        if (index == null) {
+            index = new SearchIndex(new File(rootId), new File(getContext().getCacheDir(),
+                    SEARCH_INDEX_FILE + '-' + Integer.toHexString(rootId.hashCode())));
+            mSearchIndexes.put(rootId, index);
+        }
+        return index;
+    }
+
+    /**
+     * Mark all search indexes as stale, because a file was changed.
+     */
+    private synchronized void invalidateSearchIndexes() {
+        for (SearchIndex index : mSearchIndexes.values())
+            index.invalidate();
+    }
+
     @Override
     public String createDocument(final String parentDocumentId, final String mimeType,
             final String displayName) throws FileNotFoundException {
         File newFile = new File(parentDocumentId, displayName);
         try {
             newFile.createNewFile();
+            invalidateSearchIndexes();
             return newFile.getAbsolutePath();
         } catch (IOException e) {
             Log.e(LocalStorageProvider.class.getSimpleName(), "Error creating new file " + newFile);
@@ -86,13 +258,97 @@ public class LocalStorageProvider extends DocumentsProvider {
     @Override
     public AssetFileDescriptor openDocumentThumbnail(final String documentId, final Point sizeHint,
             final CancellationSignal signal) throws FileNotFoundException {
+        // Thumbnails are cached per source version and size bucket, so a
+        // changed file or a different size never gets a stale thumbnail
+        final File file = new File(documentId);
+        final int bucket = getThumbnailBucket(sizeHint);
+        final String key = documentId + ':' + file.lastModified() + ':' + file.length() + ':'
+                + bucket;
+        final DiskCache cache = getThumbnailCache();
+        final File thumbnail = cache.get(key);
+        if (thumbnail != null)
+            return new AssetFileDescriptor(ParcelFileDescriptor.open(thumbnail,
+                    ParcelFileDescriptor.MODE_READ_ONLY), 0,
+                    AssetFileDescriptor.UNKNOWN_LENGTH);
+
+        // Decode on the bounded pool, giving up as soon as the caller
+        // cancels, e.g. because the row was scrolled off screen
+        final byte[] data = mThumbnailExecutor.execute(new Callable<byte[]>() {
+            @Override
+            public byte[] call() {
+                return encodeThumbnail(documentId, bucket, signal);
+            }
+        }, signal);
+        if (data == null)
+            return null;
+
+        if (mStreamThumbnails)
+            return streamThumbnail(documentId, bucket, key, data);
+
+        final File cached = cacheThumbnail(documentId, bucket, key, data);
+        if (cached == null)
+            return null;
+        return new AssetFileDescriptor(ParcelFileDescriptor.open(cached,
+                ParcelFileDescriptor.MODE_READ_ONLY), 0,
+                AssetFileDescriptor.UNKNOWN_LENGTH);
+    }
+
+    /**
+     * @return The number of thumbnails queued or being created.
+     */
+    public int getThumbnailInFlightCount() {
+        return mThumbnailExecutor.getInFlightCount();
+    }
+
+    /**
+     * @return The number of thumbnails created since the provider started.
+     */
+    public int getThumbnailCompletedCount() {
+        return mThumbnailExecutor.getCompletedCount();
+    }
+
+    /**
+     * @return The number of thumbnail requests cancelled before they finished.
+     */
+    public int getThumbnailCancelledCount() {
+        return mThumbnailExecutor.getCancelledCount();
+    }
+
+    /**
+     * Round a size hint up to a power of two, so that similar requests share a
+     * cached thumbnail.
+     */
+    private static int getThumbnailBucket(final Point sizeHint) {
+        final int size = Math.max(1, Math.max(sizeHint.x, sizeHint.y));
+        final int bucket = Integer.highestOneBit(size);
+        return bucket == size ? bucket : bucket << 1;
+    }
+
+    private synchronized DiskCache getThumbnailCache() {
+        if (mThumbnailCache == null)
+            mThumbnailCache = new DiskCache(new File(getContext().getCacheDir(),
+                    THUMBNAIL_CACHE_DIR), THUMBNAIL_CACHE_BYTES);
+        return mThumbnailCache;
+    }
+
+    /**
+     * Decode a thumbnail and encode it in the configured format.
+     *
+     * @return The encoded thumbnail, or null if the image could not be decoded.
+     * @throws android.os.OperationCanceledException If signal was cancelled
+     *             between two steps.
+     */
+    private byte[] encodeThumbnail(final String documentId, final int bucket,
+            final CancellationSignal signal) {
         // Assume documentId points to an image file. Build a thumbnail no
-        // larger than twice the sizeHint
+        // larger than twice the size bucket
+        if (signal != null)
+            signal.throwIfCanceled();
         BitmapFactory.Options options = new BitmapFactory.Options();
         options.inJustDecodeBounds = true;
         BitmapFactory.decodeFile(documentId, options);
-        final int targetHeight = 2 * sizeHint.y;
-        final int targetWidth = 2 * sizeHint.x;
+        final int targetHeight = 2 * bucket;
+        final int targetWidth = 2 * bucket;
         final int height = options.outHeight;
         final int width = options.outWidth;
         options.inSampleSize = 1;
@@ -107,17 +363,82 @@ public class LocalStorageProvider extends DocumentsProvider {
                 options.inSampleSize *= 2;
             }
         }
+        if (signal != null)
+            signal.throwIfCanceled();
         options.inJustDecodeBounds = false;
         Bitmap bitmap = BitmapFactory.decodeFile(documentId, options);
-        // Write out the thumbnail to a temporary file
+        if (bitmap == null)
+            return null;
+        if (signal != null)
+            signal.throwIfCanceled();
+        // JPEG has no alpha channel, so keep transparent images lossless
+        final Bitmap.CompressFormat format = mThumbnailFormat == Bitmap.CompressFormat.JPEG
+                && bitmap.hasAlpha() ? Bitmap.CompressFormat.PNG : mThumbnailFormat;
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        bitmap.compress(format, mThumbnailQuality, out);
+        bitmap.recycle();
+        return out.toByteArray();
+    }
+
+    /**
+     * Return a thumbnail through a pipe, so the caller can read it without
+     * waiting for it to be written to and read back from storage. It is added
+     * to the thumbnail cache once the pipe has been written.
+     */
+    private AssetFileDescriptor streamThumbnail(final String documentId, final int bucket,
+            final String key, final byte[] data) throws FileNotFoundException {
+        final ParcelFileDescriptor[] pipe;
+        try {
+            pipe = ParcelFileDescriptor.createPipe();
+        } catch (IOException e) {
+            throw new FileNotFoundException("Error creating pipe: " + e.getMessage());
+        }
+        AsyncTask.THREAD_POOL_EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                OutputStream out = null;
+                try {
+                    out = new ParcelFileDescriptor.AutoCloseOutputStream(pipe[1]);
+                    out.write(data);
+                } catch (IOException e) {
+                    // The caller stopped reading; the thumbnail is still cached
+                    Log.w(LocalStorageProvider.class.getSimpleName(),
+                            "Error streaming thumbnail", e);
+                } finally {
+                    if (out != null)
+                        try {
+                            out.close();
+                        } catch (IOException e) {
+                            Log.e(LocalStorageProvider.class.getSimpleName(),
+                                    "Error closing thumbnail", e);
+                        }
+                }
+                cacheThumbnail(documentId, bucket, key, data);
+            }
+        });
+        return new AssetFileDescriptor(pipe[0], 0, AssetFileDescriptor.UNKNOWN_LENGTH);
+    }
+
+    /**
+     * Add an encoded thumbnail to the thumbnail cache, dropping the one cached
+     * for an older version of the same file.
+     *
+     * @return The cached thumbnail, or null if it could not be written.
+     */
+    private File cacheThumbnail(final String documentId, final int bucket, final String key,
+            final byte[] data) {
+        // Write out the thumbnail to a temporary file in the cache
+        final DiskCache cache = getThumbnailCache();
         File tempFile = null;
         FileOutputStream out = null;
         try {
-            tempFile = File.createTempFile("thumbnail", null, getContext().getCacheDir());
+            tempFile = cache.newTempFile();
             out = new FileOutputStream(tempFile);
-            bitmap.compress(Bitmap.CompressFormat.PNG, 90, out);
+            out.write(data);
         } catch (IOException e) {
             Log.e(LocalStorageProvider.class.getSimpleName(), "Error writing thumbnail", e);
+            if (tempFile != null)
+                tempFile.delete();
             return null;
         } finally {
             if (out != null)
@@ -127,13 +448,13 @@ public class LocalStorageProvider extends DocumentsProvider {
                     Log.e(LocalStorageProvider.class.getSimpleName(), "Error closing thumbnail", e);
                 }
         }
-        // It appears the Storage Framework UI caches these results quite
-        // aggressively so there is little reason to
-        // write your own caching layer beyond what you need to return a single
-        // AssetFileDescriptor
-        return new AssetFileDescriptor(ParcelFileDescriptor.open(tempFile,
-                ParcelFileDescriptor.MODE_READ_ONLY), 0,
-                AssetFileDescriptor.UNKNOWN_LENGTH);
+        final File thumbnail = cache.put(key, tempFile);
+        // The Storage Framework UI caches these results in memory, but asks
+        // again for every new picker session, so keep them across calls
+        final String previousKey = mThumbnailKeys.put(documentId + ':' + bucket, key);
+        if (previousKey != null && !previousKey.equals(key))
+            cache.remove(previousKey);
+        return thumbnail;
     }
 
     @Override
@@ -141,17 +462,134 @@ public class LocalStorageProvider extends DocumentsProvider {
             final String sortOrder) throws FileNotFoundException {
         // Create a cursor with either the requested fields, or the default
         // projection if "projection" is null.
-        final MatrixCursor result = new MatrixCursor(projection != null ? projection
-                : DEFAULT_DOCUMENT_PROJECTION);
+        final DocumentRowBuilder builder = new DocumentRowBuilder(projection != null ? projection
+                : DEFAULT_DOCUMENT_PROJECTION, mSniffMimeTypes);
+        builder.setDirectorySizer(mDirectorySizer, mDirectorySizeCallback);
+        final Cursor result = queryChildDocuments(parentDocumentId, builder, sortOrder);
+        // Folder sizes computed later are picked up by querying again
+        result.setNotificationUri(getContext().getContentResolver(),
+                DocumentsContract.buildChildDocumentsUri(AUTHORITY, parentDocumentId));
+        return result;
+    }
+
+    private Cursor queryChildDocuments(final String parentDocumentId,
+            final DocumentRowBuilder builder, final String sortOrder) {
+        final int sortMode = getSortMode(sortOrder);
+        final boolean reverse = sortMode >= 0 && isReverseSort(sortOrder, sortMode);
+        // A listing the file chooser already read has every attribute
+        final List<FileEntry> cached = DirectoryCache.get(parentDocumentId);
+        if (cached != null) {
+            List<FileEntry> entries = cached;
+            if (sortMode >= 0) {
+                entries = new ArrayList<FileEntry>(cached);
+                FileSorter.sort(entries, sortMode, reverse);
+            }
+            final MatrixCursor result = new MatrixCursor(builder.getColumns(), entries.size());
+            for (FileEntry entry : entries)
+                builder.addRow(result, entry);
+            return result;
+        }
         final File parent = new File(parentDocumentId);
-        for (File file : parent.listFiles()) {
-            // Don't show hidden files/folders
-            if (!file.getName().startsWith(".")) {
-                // Adds the file's display name, MIME type, size, and so on.
-                includeFile(result, file);
+        if (sortMode >= 0) {
+            // Sort once until the directory changes, keeping only the names
+            final String key = parentDocumentId + ':' + sortMode + ':' + reverse;
+            SortedNames sorted = mSortedNames.get(key);
+            if (sorted == null) {
+                sorted = new SortedNames(key, parentDocumentId);
+                // Watch before reading, so a change made meanwhile isn't missed
+                final boolean watched = DirectoryWatcher.watch(parentDocumentId, sorted);
+                final DirectoryScanner.Result scan = DirectoryScanner.scan(parent, false,
+                        sortMode != FileSorter.SORT_BY_NAME);
+                final List<FileEntry> entries = new ArrayList<FileEntry>(
+                        scan.directories.size() + scan.files.size());
+                entries.addAll(scan.directories);
+                entries.addAll(scan.files);
+                FileSorter.sort(entries, sortMode, reverse);
+                sorted.names = new String[entries.size()];
+                for (int i = 0; i < sorted.names.length; i++)
+                    sorted.names[i] = entries.get(i).getName();
+                // Without a watch, the names could be served stale
+                if (watched) {
+                    mSortedNames.put(key, sorted);
+                    if (sorted.changed)
+                        mSortedNames.remove(key);
+                }
             }
+            return new WindowedDocumentCursor(parent, sorted.names, builder);
         }
-        return result;
+        // Don't show hidden files/folders. Only the names are read up front;
+        // each child is looked up when its row is read, and its size and
+        // modification time only if they were requested
+        final String[] names = parent.list();
+        if (names == null)
+            return new MatrixCursor(builder.getColumns(), 0);
+        int count = 0;
+        for (String name : names) {
+            if (!name.startsWith("."))
+                names[count++] = name;
+        }
+        final String[] visible = new String[count];
+        System.arraycopy(names, 0, visible, 0, count);
+        return new WindowedDocumentCursor(parent, visible, builder);
+    }
+
+    /**
+     * Tell clients the children of a directory changed. Notifications are
+     * held back for {@link #NOTIFY_DELAY_MILLIS}, so a burst of folder sizes
+     * computed together causes a single query.
+     */
+    private void notifyChildrenChanged(final String parentDocumentId) {
+        synchronized (mPendingNotifications) {
+            if (!mPendingNotifications.add(parentDocumentId))
+                return;
+        }
+        mHandler.postDelayed(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (mPendingNotifications) {
+                    mPendingNotifications.remove(parentDocumentId);
+                }
+                getContext().getContentResolver().notifyChange(
+                        DocumentsContract.buildChildDocumentsUri(AUTHORITY, parentDocumentId),
+                        null);
+            }
+        }, NOTIFY_DELAY_MILLIS);
+    }
+
+    /**
+     * Get the FileSorter order matching the first term of a sortOrder, such as
+     * "_display_name ASC".
+     *
+     * @return One of FileSorter.SORT_BY_NAME, SORT_BY_SIZE or
+     *         SORT_BY_LAST_MODIFIED, or -1 if the column can't be sorted on.
+     */
+    private static int getSortMode(final String sortOrder) {
+        if (sortOrder == null)
+            return -1;
+        final String column = getSortTerm(sortOrder)[0];
+        if (Document.COLUMN_DISPLAY_NAME.equals(column))
+            return FileSorter.SORT_BY_NAME;
+        if (Document.COLUMN_SIZE.equals(column))
+            return FileSorter.SORT_BY_SIZE;
+        if (Document.COLUMN_LAST_MODIFIED.equals(column))
+            return FileSorter.SORT_BY_LAST_MODIFIED;
+        return -1;
+    }
+
+    /**
+     * @return Whether the direction of sortOrder is the reverse of the
+     *         FileSorter order, which sorts sizes and dates largest first.
+     */
+    private static boolean isReverseSort(final String sortOrder, final int sortMode) {
+        final String[] term = getSortTerm(sortOrder);
+        final boolean descending = term.length > 1 && "DESC".equalsIgnoreCase(term[1]);
+        return sortMode == FileSorter.SORT_BY_NAME ? descending : !descending;
+    }
+
+    private static String[] getSortTerm(final String sortOrder) {
+        final int comma = sortOrder.indexOf(',');
+        final String term = comma >= 0 ? sortOrder.substring(0, comma) : sortOrder;
+        return term.trim().split("\\s+");
     }
 
     @Override
@@ -159,59 +597,24 @@ public class LocalStorageProvider extends DocumentsProvider {
             throws FileNotFoundException {
         // Create a cursor with either the requested fields, or the default
         // projection if "projection" is null.
-        final MatrixCursor result = new MatrixCursor(projection != null ? projection
-                : DEFAULT_DOCUMENT_PROJECTION);
-        includeFile(result, new File(documentId));
+        final DocumentRowBuilder builder = new DocumentRowBuilder(projection != null ? projection
+                : DEFAULT_DOCUMENT_PROJECTION, mSniffMimeTypes);
+        final MatrixCursor result = new MatrixCursor(builder.getColumns(), 1);
+        builder.addRow(result, DirectoryScanner.readEntry(new File(documentId),
+                builder.needsAttributes()));
         return result;
     }
 
-    private void includeFile(final MatrixCursor result, final File file)
-            throws FileNotFoundException {
-        final MatrixCursor.RowBuilder row = result.newRow();
-        // These columns are required
-        row.add(Document.COLUMN_DOCUMENT_ID, file.getAbsolutePath());
-        row.add(Document.COLUMN_DISPLAY_NAME, file.getName());
-        String mimeType = getDocumentType(file.getAbsolutePath());
-        row.add(Document.COLUMN_MIME_TYPE, mimeType);
-        int flags = file.canWrite() ? Document.FLAG_SUPPORTS_DELETE | Document.FLAG_SUPPORTS_WRITE
-                : 0;
-        // We only show thumbnails for image files - expect a call to
-        // openDocumentThumbnail for each file that has
-        // this flag set
-        if (mimeType.startsWith("image/"))
-            flags |= Document.FLAG_SUPPORTS_THUMBNAIL;
-        row.add(Document.COLUMN_FLAGS, flags);
-        // COLUMN_SIZE is required, but can be null
-        row.add(Document.COLUMN_SIZE, file.length());
-        // These columns are optional
-        row.add(Document.COLUMN_LAST_MODIFIED, file.lastModified());
-        // Document.COLUMN_ICON can be a resource id identifying a custom icon.
-        // The system provides default icons
-        // based on mime type
-        // Document.COLUMN_SUMMARY is optional additional information about the
-        // file
-    }
-
     @Override
     public String getDocumentType(final String documentId) throws FileNotFoundException {
-        File file = new File(documentId);
-        if (file.isDirectory())
-            return Document.MIME_TYPE_DIR;
-        // From FileProvider.getType(Uri)
-        final int lastDot = file.getName().lastIndexOf('.');
-        if (lastDot >= 0) {
-            final String extension = file.getName().substring(lastDot + 1);
-            final String mime = MimeTypeMap.getSingleton().getMimeTypeFromExtension(extension);
-            if (mime != null) {
-                return mime;
-            }
-        }
-        return "application/octet-stream";
+        return DocumentRowBuilder.getMimeType(DirectoryScanner.readEntry(new File(documentId),
+                false), mSniffMimeTypes);
     }
 
     @Override
     public void deleteDocument(final String documentId) throws FileNotFoundException {
         new File(documentId).delete();
+        invalidateSearchIndexes();
     }
 
     @Override
@@ -228,6 +631,38 @@ public class LocalStorageProvider extends DocumentsProvider {
 
     @Override
     public boolean onCreate() {
+        // Thumbnail output can be configured by overriding these resources
+        final Resources res = getContext().getResources();
+        final String format = res.getString(R.string.thumbnail_format);
+        if ("webp".equalsIgnoreCase(format))
+            mThumbnailFormat = Bitmap.CompressFormat.WEBP;
+        else if ("png".equalsIgnoreCase(format))
+            mThumbnailFormat = Bitmap.CompressFormat.PNG;
+        else
+            mThumbnailFormat = Bitmap.CompressFormat.JPEG;
+        mThumbnailQuality = res.getInteger(R.integer.thumbnail_quality);
+        mStreamThumbnails = res.getBoolean(R.bool.stream_thumbnails);
+        // Only documents served by this provider are typed from their
+        // content; FileUtils.setContentSniffing() is left to the app
+        mSniffMimeTypes = res.getBoolean(R.bool.sniff_mime_types);
+
+        // Volumes are listed once, then again when one is mounted or removed
+        mStorageRoots = new StorageRoots(getContext());
+        final IntentFilter filter = new IntentFilter();
+        filter.addAction(Intent.ACTION_MEDIA_MOUNTED);
+        filter.addAction(Intent.ACTION_MEDIA_UNMOUNTED);
+        filter.addAction(Intent.ACTION_MEDIA_EJECT);
+        filter.addAction(Intent.ACTION_MEDIA_REMOVED);
+        filter.addAction(Intent.ACTION_MEDIA_BAD_REMOVAL);
+        filter.addDataScheme(ContentResolver.SCHEME_FILE);
+        getContext().registerReceiver(new BroadcastReceiver() {
+            @Override
+            public void onReceive(final Context context, final Intent intent) {
+                mStorageRoots.invalidate();
+                context.getContentResolver().notifyChange(
+                        DocumentsContract.buildRootsUri(AUTHORITY), null);
+            }
+        }, filter);
         return true;
     }
 }
@@ -0,0 +1,163 @@
+
+package com.ianhanniballake.localstorage;
+
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.ipaulpro.afilechooser.utils.FileIndex;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Keeps a {@link FileIndex} of a root current for {@link LocalStorageProvider}
+ * searches and recent documents. The saved index is loaded in the
+ * background, then refreshed incrementally whenever it is older than
+ * {@link #REFRESH_INTERVAL_MILLIS} or the provider changed a file. Queries are
+ * answered from the current index while a refresh runs.<br>
+ * <br>
+ * The most recently modified files are picked from each new index in memory,
+ * so recent documents are returned without walking the disk.
+ */
+class SearchIndex {
+
+    private static final String TAG = SearchIndex.class.getSimpleName();
+
+    /** Age after which a search triggers a refresh. */
+    static final long REFRESH_INTERVAL_MILLIS = 60 * 1000;
+    /** Number of recent files kept. */
+    static final int RECENT_FILES = 64;
+
+    private final File mRoot;
+    private final File mIndexFile;
+    private final ExecutorService mExecutor = Executors
+            .newSingleThreadExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(final Runnable r) {
+                    return new Thread(new Runnable() {
+                        @Override
+                        public void run() {
+                            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                            r.run();
+                        }
+                    }, TAG);
+                }
+            });
+    /** Released once there is an index to search, or building one failed. */
+    private final CountDownLatch mReady = new CountDownLatch(1);
+    private volatile FileIndex mIndex;
+    private volatile List<String> mRecentFiles = Collections.emptyList();
+    /** Time of the last refresh, or 0 if the index is stale. */
+    private volatile long mRefreshedAt;
+    private boolean mRefreshQueued;
+
+    /**
+     * @param root The directory to index.
+     * @param indexFile The file to save the index to.
+     */
+    SearchIndex(final File root, final File indexFile) {
+        mRoot = root;
+        mIndexFile = indexFile;
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                final FileIndex saved = FileIndex.load(mIndexFile);
+                if (saved != null && saved.getRoot().equals(mRoot.getAbsolutePath())) {
+                    mIndex = saved;
+                    mRecentFiles = saved.getRecentFiles(RECENT_FILES);
+                    mReady.countDown();
+                }
+            }
+        });
+        refresh();
+    }
+
+    /**
+     * Find the files whose names contain a query. Waits for the index to be
+     * loaded or, the first time, built.
+     *
+     * @param query The text to search for.
+     * @param limit The maximum number of results.
+     * @return The absolute paths of the matches.
+     */
+    List<String> search(final String query, final int limit) {
+        if (!awaitIndex())
+            return Collections.emptyList();
+        final FileIndex index = mIndex;
+        if (index == null)
+            return Collections.emptyList();
+        return index.search(query, limit);
+    }
+
+    /**
+     * Get the most recently modified files. Waits for the index to be loaded
+     * or, the first time, built.
+     *
+     * @param limit The maximum number of files, up to {@link #RECENT_FILES}.
+     * @return The absolute paths of the files, newest first.
+     */
+    List<String> getRecentFiles(final int limit) {
+        if (!awaitIndex())
+            return Collections.emptyList();
+        final List<String> recentFiles = mRecentFiles;
+        return recentFiles.subList(0, Math.min(limit, recentFiles.size()));
+    }
+
+    /**
+     * Mark the index as stale, because a file was changed, so the next query
+     * refreshes it.
+     */
+    void invalidate() {
+        mRefreshedAt = 0;
+    }
+
+    /**
+     * Refresh the index if it is stale, and wait for there to be one.
+     *
+     * @return Whether waiting was not interrupted.
+     */
+    private boolean awaitIndex() {
+        if (SystemClock.elapsedRealtime() - mRefreshedAt > REFRESH_INTERVAL_MILLIS)
+            refresh();
+        try {
+            mReady.await();
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    private synchronized void refresh() {
+        if (mRefreshQueued)
+            return;
+        mRefreshQueued = true;
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (SearchIndex.this) {
+                    mRefreshQueued = false;
+                }
+                final long start = SystemClock.elapsedRealtime();
+                try {
+                    final FileIndex index = FileIndex.build(mRoot, mIndex);
+                    mIndex = index;
+                    mRecentFiles = index.getRecentFiles(RECENT_FILES);
+                    mRefreshedAt = start;
+                    index.save(mIndexFile);
+                } catch (IOException e) {
+                    Log.w(TAG, "Error saving file index", e);
+                } finally {
+                    mReady.countDown();
+                }
+            }
+        });
+    }
+}
@@ -0,0 +1,113 @@
+
+package com.ianhanniballake.localstorage;
+
+import android.content.Context;
+import android.os.Environment;
+import android.os.StatFs;
+import android.os.SystemClock;
+
+import com.ipaulpro.afilechooser.utils.FileUtils;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The mounted storage volumes shown as roots by {@link LocalStorageProvider}.
+ * The volume list is kept until {@link #invalidate()} is called on a mount
+ * change, and each volume's space is read with a single statfs at most once
+ * per {@link #SPACE_TTL_MILLIS}, however often the roots are queried.
+ */
+class StorageRoots {
+
+    /** How long the space read from a volume is used for. */
+    static final long SPACE_TTL_MILLIS = 5 * 1000;
+
+    /**
+     * A mounted volume and its cached space.
+     */
+    static class Volume {
+        final File directory;
+        final boolean primary;
+        /** Whether the app can create files at the root of the volume. */
+        final boolean writable;
+        private long mAvailableBytes;
+        private long mSpaceReadAt = -SPACE_TTL_MILLIS;
+
+        Volume(final File directory, final boolean primary) {
+            this.directory = directory;
+            this.primary = primary;
+            writable = directory.canWrite();
+        }
+
+        /**
+         * @return The root id of the volume, its absolute path.
+         */
+        String getRootId() {
+            return directory.getAbsolutePath();
+        }
+
+        /**
+         * @return The bytes available to the app on the volume.
+         */
+        synchronized long getAvailableBytes() {
+            final long now = SystemClock.elapsedRealtime();
+            if (now - mSpaceReadAt >= SPACE_TTL_MILLIS) {
+                try {
+                    mAvailableBytes = new StatFs(directory.getPath()).getAvailableBytes();
+                } catch (IllegalArgumentException e) {
+                    // Unmounted since the list was read
+                    mAvailableBytes = 0;
+                }
+                mSpaceReadAt = now;
+            }
+            return mAvailableBytes;
+        }
+    }
+
+    private final Context mContext;
+    private volatile List<Volume> mVolumes;
+
+    StorageRoots(final Context context) {
+        mContext = context;
+    }
+
+    /**
+     * @return The mounted volumes, primary first.
+     */
+    List<Volume> getVolumes() {
+        List<Volume> volumes = mVolumes;
+        if (volumes == null) {
+            final List<File> directories = FileUtils.getStorageVolumes(mContext);
+            final boolean primaryMounted = !directories.isEmpty()
+                    && directories.get(0).equals(Environment.getExternalStorageDirectory());
+            volumes = new ArrayList<Volume>(directories.size());
+            for (int i = 0; i < directories.size(); i++)
+                volumes.add(new Volume(directories.get(i), i == 0 && primaryMounted));
+            volumes = Collections.unmodifiableList(volumes);
+            mVolumes = volumes;
+        }
+        return volumes;
+    }
+
+    /**
+     * @param rootId The root id of a volume.
+     * @return The mounted volume with the given root id, or null if there is
+     *         none.
+     */
+    Volume getVolume(final String rootId) {
+        for (Volume volume : getVolumes()) {
+            if (volume.getRootId().equals(rootId))
+                return volume;
+        }
+        return null;
+    }
+
+    /**
+     * Forget the volume list, because a volume was mounted or removed.
+     */
+    void invalidate() {
+        mVolumes = null;
+    }
+}
@@ -0,0 +1,171 @@
+
+package com.ianhanniballake.localstorage;
+
+import android.os.CancellationSignal;
+import android.os.OperationCanceledException;
+import android.os.Process;
+import android.util.Log;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs thumbnail work for {@link LocalStorageProvider} on a small pool of
+ * background threads, newest request first, so the rows a user has just
+ * scrolled to are served before the ones already off screen. Requests are
+ * removed from the queue as soon as their CancellationSignal fires.
+ */
+class ThumbnailExecutor {
+
+    private static final String TAG = ThumbnailExecutor.class.getSimpleName();
+
+    private final ThreadPoolExecutor mExecutor;
+    private final AtomicLong mSequence = new AtomicLong();
+    private final AtomicInteger mInFlightCount = new AtomicInteger();
+    private final AtomicInteger mCompletedCount = new AtomicInteger();
+    private final AtomicInteger mCancelledCount = new AtomicInteger();
+
+    private class Task<T> extends FutureTask<T> implements Comparable<Task<?>> {
+        final long sequence;
+        /**
+         * Set by run(), or by a cancel before it, to take the task off the
+         * in-flight count exactly once.
+         */
+        final AtomicBoolean claimed = new AtomicBoolean();
+
+        Task(final Callable<T> callable) {
+            super(callable);
+            sequence = mSequence.getAndIncrement();
+        }
+
+        @Override
+        public int compareTo(final Task<?> another) {
+            // Newest first
+            return sequence > another.sequence ? -1 : (sequence == another.sequence ? 0 : 1);
+        }
+
+        @Override
+        public void run() {
+            if (!claimed.compareAndSet(false, true)) {
+                // Cancelled before it started, and already counted as done
+                super.run();
+                return;
+            }
+            try {
+                super.run();
+            } finally {
+                // Cancelling a running task doesn't stop its work, so it is
+                // in flight until the work returns
+                mInFlightCount.decrementAndGet();
+            }
+        }
+
+        @Override
+        protected void done() {
+            if (isCancelled() && claimed.compareAndSet(false, true))
+                mInFlightCount.decrementAndGet();
+            boolean cancelled = isCancelled();
+            if (!cancelled) {
+                try {
+                    get();
+                } catch (ExecutionException e) {
+                    cancelled = e.getCause() instanceof OperationCanceledException;
+                } catch (InterruptedException e) {
+                    // Can't happen, the task is done
+                }
+            }
+            if (cancelled)
+                mCancelledCount.incrementAndGet();
+            else
+                mCompletedCount.incrementAndGet();
+        }
+    }
+
+    ThumbnailExecutor(final int threadCount) {
+        mExecutor = new ThreadPoolExecutor(threadCount, threadCount, 0, TimeUnit.SECONDS,
+                new PriorityBlockingQueue<Runnable>(), new ThreadFactory() {
+                    @Override
+                    public Thread newThread(final Runnable r) {
+                        return new Thread(new Runnable() {
+                            @Override
+                            public void run() {
+                                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                                r.run();
+                            }
+                        }, TAG);
+                    }
+                });
+    }
+
+    /**
+     * Run work on the pool and wait for its result. The work should call
+     * {@link CancellationSignal#throwIfCanceled()} between its steps.
+     *
+     * @param callable The work to run.
+     * @param signal Signal to cancel the work, or null.
+     * @return The result of the work, or null if it failed.
+     * @throws OperationCanceledException If the work was cancelled.
+     */
+    <T> T execute(final Callable<T> callable, final CancellationSignal signal) {
+        final Task<T> task = new Task<T>(callable);
+        if (signal != null) {
+            signal.setOnCancelListener(new CancellationSignal.OnCancelListener() {
+                @Override
+                public void onCancel() {
+                    // Drop the task if it hasn't started yet
+                    task.cancel(false);
+                    mExecutor.remove(task);
+                }
+            });
+        }
+        mInFlightCount.incrementAndGet();
+        mExecutor.execute(task);
+        try {
+            return task.get();
+        } catch (CancellationException e) {
+            throw new OperationCanceledException();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new OperationCanceledException();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof OperationCanceledException)
+                throw (OperationCanceledException) e.getCause();
+            Log.e(TAG, "Error creating thumbnail", e.getCause());
+            return null;
+        } finally {
+            if (signal != null)
+                signal.setOnCancelListener(null);
+        }
+    }
+
+    /**
+     * @return The number of requests queued or running, including cancelled
+     *         ones whose work has not returned yet.
+     */
+    int getInFlightCount() {
+        return mInFlightCount.get();
+    }
+
+    /**
+     * @return The number of requests that ran to the end.
+     */
+    int getCompletedCount() {
+        return mCompletedCount.get();
+    }
+
+    /**
+     * @return The number of requests that were cancelled, queued or running.
+     */
+    int getCancelledCount() {
+        return mCancelledCount.get();
+    }
+}
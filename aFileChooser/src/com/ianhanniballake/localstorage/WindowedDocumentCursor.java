@@ -0,0 +1,116 @@
+
+package com.ianhanniballake.localstorage;
+
+import android.database.AbstractCursor;
+
+import com.ipaulpro.afilechooser.utils.DirectoryScanner;
+
+import java.io.File;
+
+/**
+ * A cursor over the children of a directory that only holds their names.
+ * Rows are built by {@link DocumentRowBuilder} a window at a time, as they are
+ * read, so the memory used stays the same however many children there are,
+ * and a caller that only reads the first screen never looks up the rest.
+ */
+class WindowedDocumentCursor extends AbstractCursor {
+
+    /** Number of rows built together, and held at any time. */
+    static final int ROWS_PER_WINDOW = 64;
+
+    private final File mParent;
+    private final String[] mNames;
+    private final DocumentRowBuilder mBuilder;
+    private final Object[][] mRows = new Object[ROWS_PER_WINDOW][];
+    /** Position of the first row in mRows, or -1 if none is built. */
+    private int mWindowStart = -1;
+
+    /**
+     * @param parent The directory.
+     * @param names The names of the children to show, in order.
+     * @param builder The builder of the rows.
+     */
+    WindowedDocumentCursor(final File parent, final String[] names,
+            final DocumentRowBuilder builder) {
+        mParent = parent;
+        mNames = names;
+        mBuilder = builder;
+    }
+
+    @Override
+    public int getCount() {
+        return mNames.length;
+    }
+
+    @Override
+    public String[] getColumnNames() {
+        return mBuilder.getColumns();
+    }
+
+    @Override
+    public int getType(final int column) {
+        final Object value = get(column);
+        if (value == null)
+            return FIELD_TYPE_NULL;
+        if (value instanceof Integer || value instanceof Long)
+            return FIELD_TYPE_INTEGER;
+        return FIELD_TYPE_STRING;
+    }
+
+    @Override
+    public String getString(final int column) {
+        final Object value = get(column);
+        return value != null ? value.toString() : null;
+    }
+
+    @Override
+    public short getShort(final int column) {
+        return (short) getLong(column);
+    }
+
+    @Override
+    public int getInt(final int column) {
+        return (int) getLong(column);
+    }
+
+    @Override
+    public long getLong(final int column) {
+        final Object value = get(column);
+        if (value == null)
+            return 0;
+        if (value instanceof Number)
+            return ((Number) value).longValue();
+        return Long.parseLong(value.toString());
+    }
+
+    @Override
+    public float getFloat(final int column) {
+        return getLong(column);
+    }
+
+    @Override
+    public double getDouble(final int column) {
+        return getLong(column);
+    }
+
+    @Override
+    public boolean isNull(final int column) {
+        return get(column) == null;
+    }
+
+    private Object get(final int column) {
+        checkPosition();
+        final int position = getPosition();
+        final int windowStart = position - position % ROWS_PER_WINDOW;
+        if (windowStart != mWindowStart) {
+            // Build the whole window, since rows are mostly read in order
+            final int windowEnd = Math.min(windowStart + ROWS_PER_WINDOW, mNames.length);
+            for (int i = windowStart; i < windowEnd; i++) {
+                mRows[i - windowStart] = mBuilder.buildRow(DirectoryScanner.readEntry(new File(
+                        mParent, mNames[i]), mBuilder.needsAttributes()));
+            }
+            mWindowStart = windowStart;
+        }
+        return mRows[position - windowStart][column];
+    }
+}
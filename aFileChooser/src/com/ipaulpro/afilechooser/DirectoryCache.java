@@ -0,0 +1,211 @@
+/*
+ * Copyright (C) 2013 Paul Burke
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ipaulpro.afilechooser;
+
+import com.ipaulpro.afilechooser.utils.FileEntry;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Process-wide cache of directory listings, shared by all
+ * {@link FileLoader}s. Each cached directory is watched through the
+ * {@link DirectoryWatcher} and dropped as soon as it changes, so a listing is
+ * never served stale. A listing whose directory can't be watched is not
+ * cached.<br>
+ * <br>
+ * The cache is bounded by the total number of entries in all listings, and by
+ * the number of listings, each of which holds a watch.
+ *
+ * @version 2013-12-11
+ * @author paulburke (ipaulpro)
+ */
+public class DirectoryCache {
+    private DirectoryCache() {} //private constructor to enforce Singleton pattern
+
+    /** Maximum number of files held across all cached listings. */
+    public static final int MAX_ENTRIES = 20000;
+
+    /** Maximum number of cached listings. */
+    public static final int MAX_LISTINGS = 256;
+
+    /**
+     * A cached listing, which drops itself when its directory changes.
+     */
+    private static class Listing implements DirectoryWatcher.Listener {
+        final List<FileEntry> files;
+
+        Listing(List<FileEntry> files) {
+            this.files = files;
+        }
+
+        @Override
+        public void onDirectoryChanged(String path) {
+            // A newer listing of the same directory has its own listener
+            synchronized (DirectoryCache.class) {
+                if (sListings.get(path) != this)
+                    return;
+                remove(path);
+                sInvalidationCount++;
+            }
+        }
+    }
+
+    /** Listings by path, least recently used first. */
+    private static final LinkedHashMap<String, Listing> sListings =
+            new LinkedHashMap<String, Listing>(16, 0.75f, true);
+    private static int sSize;
+    private static int sHitCount;
+    private static int sMissCount;
+    private static int sEvictionCount;
+    private static int sInvalidationCount;
+
+    /**
+     * Get the cached listing of a directory.
+     *
+     * @param path The absolute path of the directory.
+     * @return The cached listing, which can't be modified, or null if there is
+     *         none.
+     */
+    public static synchronized List<FileEntry> get(String path) {
+        final Listing listing = sListings.get(path);
+        if (listing == null) {
+            sMissCount++;
+            return null;
+        }
+        sHitCount++;
+        return listing.files;
+    }
+
+    /**
+     * Cache the listing of a directory. The listing is only kept if the
+     * directory has not been modified since lastModified, which the caller
+     * must read before listing the directory, and if it can be watched.
+     *
+     * @param path The absolute path of the directory.
+     * @param files The listing of the directory. A copy is kept.
+     * @param lastModified The modification time of the directory before it was
+     *            listed.
+     */
+    public static synchronized void put(String path, List<FileEntry> files, long lastModified) {
+        if (files.size() + 1 > MAX_ENTRIES)
+            return;
+
+        final Listing listing = new Listing(Collections.unmodifiableList(
+                new ArrayList<FileEntry>(files)));
+        // Make room first, so the watch of an evicted listing can be reused
+        remove(path);
+        trimToSize(MAX_ENTRIES - files.size() - 1, MAX_LISTINGS - 1);
+        if (!DirectoryWatcher.watch(path, listing))
+            return;
+
+        // The directory may have changed before it was watched
+        if (new File(path).lastModified() != lastModified) {
+            DirectoryWatcher.unwatch(path, listing);
+            return;
+        }
+
+        sListings.put(path, listing);
+        sSize += sizeOf(listing);
+    }
+
+    /**
+     * Drop the cached listing of a directory, if any.
+     *
+     * @param path The absolute path of the directory.
+     */
+    public static synchronized void invalidate(String path) {
+        if (remove(path))
+            sInvalidationCount++;
+    }
+
+    /**
+     * Drop all cached listings.
+     */
+    public static synchronized void clear() {
+        trimToSize(-1, 0);
+    }
+
+    /**
+     * Drop the least recently used listings until the rest hold at most
+     * maxEntries files, for example when memory runs low.
+     *
+     * @param maxEntries The number of files to keep.
+     */
+    public static synchronized void trimToSize(int maxEntries) {
+        trimToSize(maxEntries, MAX_LISTINGS);
+    }
+
+    /**
+     * @return The number of times a cached listing was returned.
+     */
+    public static synchronized int getHitCount() {
+        return sHitCount;
+    }
+
+    /**
+     * @return The number of times a listing was not in the cache.
+     */
+    public static synchronized int getMissCount() {
+        return sMissCount;
+    }
+
+    /**
+     * @return The number of listings dropped to stay within
+     *         {@link #MAX_ENTRIES} and {@link #MAX_LISTINGS}.
+     */
+    public static synchronized int getEvictionCount() {
+        return sEvictionCount;
+    }
+
+    /**
+     * @return The number of listings dropped because their directory changed.
+     */
+    public static synchronized int getInvalidationCount() {
+        return sInvalidationCount;
+    }
+
+    private static int sizeOf(Listing listing) {
+        // Count the listing itself so empty directories still cost something
+        return listing.files.size() + 1;
+    }
+
+    private static boolean remove(String path) {
+        final Listing listing = sListings.remove(path);
+        if (listing == null)
+            return false;
+        sSize -= sizeOf(listing);
+        DirectoryWatcher.unwatch(path, listing);
+        return true;
+    }
+
+    private static void trimToSize(int maxEntries, int maxListings) {
+        final Iterator<Map.Entry<String, Listing>> iterator = sListings.entrySet().iterator();
+        while ((sSize > maxEntries || sListings.size() > maxListings) && iterator.hasNext()) {
+            final Map.Entry<String, Listing> eldest = iterator.next();
+            iterator.remove();
+            sSize -= sizeOf(eldest.getValue());
+            DirectoryWatcher.unwatch(eldest.getKey(), eldest.getValue());
+            sEvictionCount++;
+        }
+    }
+}
@@ -0,0 +1,135 @@
+/*
+ * Copyright (C) 2013 Paul Burke
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ipaulpro.afilechooser;
+
+import android.os.FileObserver;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Process-wide registry of directory watches, with exactly one FileObserver
+ * per path. Before Android 10, FileObservers on the same path share a single
+ * inotify watch and only the last one receives events, and stopping any of
+ * them stops the watch for all. Every watch in this library therefore goes
+ * through here, and the observer of a path is only stopped once its last
+ * listener is removed.<br>
+ * <br>
+ * The number of watched paths is capped at {@link #MAX_WATCHES}, well below
+ * the per-user inotify limit, since FileObserver gives no way to tell that a
+ * watch could not be added.
+ *
+ * @version 2013-12-11
+ * @author paulburke (ipaulpro)
+ */
+public class DirectoryWatcher {
+    private DirectoryWatcher() {} //private constructor to enforce Singleton pattern
+
+    /** Maximum number of paths watched at once. */
+    public static final int MAX_WATCHES = 512;
+
+    static final int FILE_OBSERVER_MASK = FileObserver.CREATE
+            | FileObserver.DELETE | FileObserver.DELETE_SELF
+            | FileObserver.MOVED_FROM | FileObserver.MOVED_TO
+            | FileObserver.MODIFY | FileObserver.MOVE_SELF;
+
+    /**
+     * Interface to hear about changes to a directory. Called on the
+     * FileObserver thread.
+     */
+    public interface Listener {
+        /**
+         * Called when an entry of the directory, or the directory itself,
+         * changed.
+         *
+         * @param path The absolute path of the directory.
+         */
+        public void onDirectoryChanged(String path);
+    }
+
+    /**
+     * The observer of a path and its listeners.
+     */
+    private static class Watch extends FileObserver {
+        final String path;
+        final List<Listener> listeners = new ArrayList<Listener>(2);
+
+        Watch(String path) {
+            super(path, FILE_OBSERVER_MASK);
+            this.path = path;
+        }
+
+        @Override
+        public void onEvent(int event, String file) {
+            final Listener[] current;
+            synchronized (DirectoryWatcher.class) {
+                current = listeners.toArray(new Listener[listeners.size()]);
+            }
+            for (Listener listener : current)
+                listener.onDirectoryChanged(path);
+        }
+    }
+
+    private static final HashMap<String, Watch> sWatches = new HashMap<String, Watch>();
+
+    /**
+     * Start calling a listener when a directory changes.
+     *
+     * @param path The absolute path of the directory.
+     * @param listener The listener, which must be removed with
+     *            {@link #unwatch(String, Listener)}.
+     * @return Whether the directory is watched, or false if too many paths
+     *         are watched already.
+     */
+    public static synchronized boolean watch(String path, Listener listener) {
+        Watch watch = sWatches.get(path);
+        if (watch == null) {
+            if (sWatches.size() >= MAX_WATCHES)
+                return false;
+            watch = new Watch(path);
+            sWatches.put(path, watch);
+            watch.startWatching();
+        }
+        watch.listeners.add(listener);
+        return true;
+    }
+
+    /**
+     * Stop calling a listener added with {@link #watch(String, Listener)}.
+     * The directory stays watched for its other listeners.
+     *
+     * @param path The absolute path of the directory.
+     * @param listener The listener.
+     */
+    public static synchronized void unwatch(String path, Listener listener) {
+        final Watch watch = sWatches.get(path);
+        if (watch == null || !watch.listeners.remove(listener))
+            return;
+        if (watch.listeners.isEmpty()) {
+            sWatches.remove(path);
+            watch.stopWatching();
+        }
+    }
+
+    /**
+     * @return The number of paths watched.
+     */
+    public static synchronized int getWatchCount() {
+        return sWatches.size();
+    }
+}
@@ -17,24 +17,38 @@
 package com.ipaulpro.afilechooser;
 
 import android.app.ActionBar;
+import android.app.ProgressDialog;
 import android.content.BroadcastReceiver;
+import android.content.ClipData;
+import android.content.ClipDescription;
 import android.content.Context;
+import android.content.DialogInterface;
 import android.content.Intent;
 import android.content.IntentFilter;
 import android.net.Uri;
 import android.os.Build;
 import android.os.Bundle;
 import android.os.Environment;
+import android.os.Handler;
 import android.support.v4.app.FragmentActivity;
 import android.support.v4.app.FragmentManager;
 import android.support.v4.app.FragmentManager.BackStackEntry;
 import android.support.v4.app.FragmentManager.OnBackStackChangedListener;
 import android.support.v4.app.FragmentTransaction;
+import android.text.format.Formatter;
 import android.view.Menu;
 import android.view.MenuItem;
 import android.widget.Toast;
 
+import com.ipaulpro.afilechooser.utils.DirectoryExpander;
+import com.ipaulpro.afilechooser.utils.FileSearch;
+
 import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
 
 /**
  * Main Activity that handles the FileListFragments
@@ -43,14 +57,52 @@ import java.io.File;
  * @author paulburke (ipaulpro)
  */
 public class FileChooserActivity extends FragmentActivity implements
-        OnBackStackChangedListener, FileListFragment.Callbacks {
+        OnBackStackChangedListener, FileListFragment.Callbacks,
+        FileListFragment.SelectionCallbacks, FileListFragment.NavigationCallbacks {
 
     public static final String PATH = "path";
+    /**
+     * Boolean extra to let the user select several files. Same value as
+     * Intent.EXTRA_ALLOW_MULTIPLE, which is only defined from API 18.
+     */
+    public static final String EXTRA_ALLOW_MULTIPLE = "android.intent.extra.ALLOW_MULTIPLE";
+    public static final String SELECTED_PATHS = "selected_paths";
+    /**
+     * Boolean extra to let the user select a directory. The result data is
+     * then the directory, and {@link #EXTRA_MANIFEST} lists the files it
+     * contains.
+     */
+    public static final String EXTRA_SELECT_DIRECTORY = "com.ipaulpro.afilechooser.SELECT_DIRECTORY";
+    /** String extra: a name glob, such as "*.jpg", of the files to list. */
+    public static final String EXTRA_INCLUDE_GLOB = "com.ipaulpro.afilechooser.INCLUDE_GLOB";
+    /** String extra: a name glob of the files and directories to leave out. */
+    public static final String EXTRA_EXCLUDE_GLOB = "com.ipaulpro.afilechooser.EXCLUDE_GLOB";
+    /** Int extra: the maximum number of files to list. */
+    public static final String EXTRA_MAX_FILES = "com.ipaulpro.afilechooser.MAX_FILES";
+    /** Long extra: the maximum total size of the files to list. */
+    public static final String EXTRA_MAX_BYTES = "com.ipaulpro.afilechooser.MAX_BYTES";
+    /**
+     * Result String extra: the path of the manifest of the selected
+     * directory.
+     *
+     * @see DirectoryExpander#readManifest(File)
+     */
+    public static final String EXTRA_MANIFEST = "com.ipaulpro.afilechooser.MANIFEST";
+    /** Result boolean extra: whether files were left out of the manifest. */
+    public static final String EXTRA_MANIFEST_TRUNCATED = "com.ipaulpro.afilechooser.MANIFEST_TRUNCATED";
+
+    /** Maximum number of files listed if {@link #EXTRA_MAX_FILES} is not set. */
+    public static final int DEFAULT_MAX_FILES = 100000;
     public static final String EXTERNAL_BASE_PATH = Environment
             .getExternalStorageDirectory().getAbsolutePath();
 
     private static final boolean HAS_ACTIONBAR = Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB;
 
+    private static final int MENU_SELECT = 1;
+    private static final int MENU_SELECT_DIRECTORY = 2;
+
+    private static final String MANIFEST_DIR = "manifests";
+
     private FragmentManager mFragmentManager;
     private BroadcastReceiver mStorageListener = new BroadcastReceiver() {
         @Override
@@ -61,6 +113,21 @@ public class FileChooserActivity extends FragmentActivity implements
     };
 
     private String mPath;
+    /**
+     * Paths of the selected files, in the order they were selected. Kept
+     * here rather than in the lists, so it survives navigating between
+     * directories. Created before the lists are restored, which attach to
+     * it.
+     */
+    private final LinkedHashSet<String> mSelectedPaths = new LinkedHashSet<String>();
+
+    private final Handler mHandler = new Handler();
+    private NavigationModel mNavigationModel;
+    private DirectoryExpander mExpander;
+    private ProgressDialog mProgressDialog;
+    private volatile int mExpandedFiles;
+    private volatile long mExpandedBytes;
+    private volatile boolean mProgressPosted;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -69,14 +136,25 @@ public class FileChooserActivity extends FragmentActivity implements
         mFragmentManager = getSupportFragmentManager();
         mFragmentManager.addOnBackStackChangedListener(this);
 
+        // Keep the listings and scroll positions of the back stack across
+        // configuration changes
+        mNavigationModel = (NavigationModel) getLastCustomNonConfigurationInstance();
+        if (mNavigationModel == null)
+            mNavigationModel = new NavigationModel();
+
         if (savedInstanceState == null) {
             mPath = EXTERNAL_BASE_PATH;
             addFragment();
         } else {
             mPath = savedInstanceState.getString(PATH);
+            final ArrayList<String> selected = savedInstanceState
+                    .getStringArrayList(SELECTED_PATHS);
+            if (selected != null)
+                mSelectedPaths.addAll(selected);
         }
 
         setTitle(mPath);
+        updateNavigationModel();
     }
 
     @Override
@@ -93,11 +171,50 @@ public class FileChooserActivity extends FragmentActivity implements
         registerStorageListener();
     }
 
+    @Override
+    protected void onDestroy() {
+        cancelExpansion();
+        if (isFinishing())
+            mNavigationModel.cancelPrefetch();
+
+        super.onDestroy();
+    }
+
+    @Override
+    public Object onRetainCustomNonConfigurationInstance() {
+        return mNavigationModel;
+    }
+
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+
+        mNavigationModel.trimMemory(level);
+        // Thumbnails are the largest use of the heap; rows keep those shown
+        if (level >= TRIM_MEMORY_RUNNING_LOW)
+            ThumbnailLoader.getInstance(this).trimMemory();
+    }
+
+    @Override
+    public void onLowMemory() {
+        super.onLowMemory();
+
+        mNavigationModel.trimMemory(TRIM_MEMORY_COMPLETE);
+        ThumbnailLoader.getInstance(this).trimMemory();
+    }
+
+    @Override
+    public NavigationModel getNavigationModel() {
+        return mNavigationModel;
+    }
+
     @Override
     protected void onSaveInstanceState(Bundle outState) {
         super.onSaveInstanceState(outState);
 
         outState.putString(PATH, mPath);
+        if (!mSelectedPaths.isEmpty())
+            outState.putStringArrayList(SELECTED_PATHS, new ArrayList<String>(mSelectedPaths));
     }
 
     @Override
@@ -112,10 +229,24 @@ public class FileChooserActivity extends FragmentActivity implements
         }
 
         setTitle(mPath);
+        updateNavigationModel();
         if (HAS_ACTIONBAR)
             invalidateOptionsMenu();
     }
 
+    /**
+     * Tell the navigation model which directories are on the back stack, so
+     * it releases the levels that were popped.
+     */
+    private void updateNavigationModel() {
+        final int count = mFragmentManager.getBackStackEntryCount();
+        final ArrayList<String> paths = new ArrayList<String>(count + 1);
+        paths.add(EXTERNAL_BASE_PATH);
+        for (int i = 0; i < count; i++)
+            paths.add(mFragmentManager.getBackStackEntryAt(i).getName());
+        mNavigationModel.setBackStack(paths);
+    }
+
     @Override
     public boolean onCreateOptionsMenu(Menu menu) {
         if (HAS_ACTIONBAR) {
@@ -126,6 +257,23 @@ public class FileChooserActivity extends FragmentActivity implements
             actionBar.setHomeButtonEnabled(hasBackStack);
         }
 
+        if (isMultipleSelection()) {
+            final MenuItem select = menu.add(Menu.NONE, MENU_SELECT, Menu.NONE,
+                    getString(R.string.select_count, mSelectedPaths.size()));
+            select.setEnabled(!mSelectedPaths.isEmpty());
+            if (HAS_ACTIONBAR)
+                select.setShowAsAction(MenuItem.SHOW_AS_ACTION_IF_ROOM
+                        | MenuItem.SHOW_AS_ACTION_WITH_TEXT);
+        }
+
+        if (getIntent().getBooleanExtra(EXTRA_SELECT_DIRECTORY, false)) {
+            final MenuItem select = menu.add(Menu.NONE, MENU_SELECT_DIRECTORY, Menu.NONE,
+                    R.string.select_directory);
+            if (HAS_ACTIONBAR)
+                select.setShowAsAction(MenuItem.SHOW_AS_ACTION_IF_ROOM
+                        | MenuItem.SHOW_AS_ACTION_WITH_TEXT);
+        }
+
         return true;
     }
 
@@ -135,6 +283,12 @@ public class FileChooserActivity extends FragmentActivity implements
             case android.R.id.home:
                 mFragmentManager.popBackStack();
                 return true;
+            case MENU_SELECT:
+                finishWithResults(mSelectedPaths);
+                return true;
+            case MENU_SELECT_DIRECTORY:
+                expandDirectory(new File(mPath));
+                return true;
         }
 
         return super.onOptionsItemSelected(item);
@@ -181,6 +335,178 @@ public class FileChooserActivity extends FragmentActivity implements
         }
     }
 
+    /**
+     * Finish this Activity with the URIs of the selected files. The first is
+     * also the data of the result, for callers that expect a single file.
+     *
+     * @param paths The paths of the files selected.
+     * @see com.ipaulpro.afilechooser.utils.FileUtils#getResultUris(Intent)
+     */
+    private void finishWithResults(Set<String> paths) {
+        final ArrayList<Uri> uris = new ArrayList<Uri>(paths.size());
+        for (String path : paths)
+            uris.add(Uri.fromFile(new File(path)));
+
+        final Intent result = new Intent().setData(uris.get(0));
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN)
+            result.setClipData(createClipData(uris));
+        else
+            result.putParcelableArrayListExtra(Intent.EXTRA_STREAM, uris);
+        setResult(RESULT_OK, result);
+        finish();
+    }
+
+    /**
+     * Put all URIs in a single ClipData, without looking up their types.
+     */
+    private static ClipData createClipData(List<Uri> uris) {
+        final ClipData clip = new ClipData(null, new String[] {
+                ClipDescription.MIMETYPE_TEXT_URILIST
+        }, new ClipData.Item(uris.get(0)));
+        for (int i = 1; i < uris.size(); i++)
+            clip.addItem(new ClipData.Item(uris.get(i)));
+        return clip;
+    }
+
+    /**
+     * List the files of the selected directory into a manifest in the
+     * background, then finish with the directory and its manifest.
+     *
+     * @param dir The directory selected.
+     */
+    private void expandDirectory(final File dir) {
+        cancelExpansion();
+
+        // Manifests returned before have been read by now
+        final File manifestDir = new File(getCacheDir(), MANIFEST_DIR);
+        manifestDir.mkdirs();
+        final File[] previous = manifestDir.listFiles();
+        if (previous != null) {
+            for (File file : previous)
+                file.delete();
+        }
+        final File manifest = new File(manifestDir, "manifest-" + System.currentTimeMillis()
+                + ".txt");
+
+        final Intent intent = getIntent();
+        final FileSearch.Criteria criteria = new FileSearch.Criteria()
+                .setExcludeGlob(intent.getStringExtra(EXTRA_EXCLUDE_GLOB));
+        final String include = intent.getStringExtra(EXTRA_INCLUDE_GLOB);
+        if (include != null)
+            criteria.setNameGlob(include);
+
+        mProgressDialog = new ProgressDialog(this);
+        mProgressDialog.setIndeterminate(true);
+        mProgressDialog.setMessage(getString(R.string.listing_files));
+        mProgressDialog.setOnCancelListener(new DialogInterface.OnCancelListener() {
+            @Override
+            public void onCancel(DialogInterface dialog) {
+                cancelExpansion();
+            }
+        });
+        mProgressDialog.show();
+
+        mExpander = new DirectoryExpander(dir, criteria, intent.getIntExtra(EXTRA_MAX_FILES,
+                DEFAULT_MAX_FILES), intent.getLongExtra(EXTRA_MAX_BYTES, -1), manifest,
+                new DirectoryExpander.Callback() {
+                    @Override
+                    public void onProgress(DirectoryExpander expander, int fileCount,
+                            long byteCount) {
+                        mExpandedFiles = fileCount;
+                        mExpandedBytes = byteCount;
+                        // Post one update at a time, however fast files are found
+                        if (mProgressPosted)
+                            return;
+                        mProgressPosted = true;
+                        mHandler.post(mProgressUpdater);
+                    }
+
+                    @Override
+                    public void onExpanded(final DirectoryExpander expander,
+                            final File manifest, int fileCount, long byteCount,
+                            final boolean truncated) {
+                        mHandler.post(new Runnable() {
+                            @Override
+                            public void run() {
+                                if (expander != mExpander)
+                                    return;
+                                mExpander = null;
+                                dismissProgress();
+                                finishWithManifest(dir, manifest, truncated);
+                            }
+                        });
+                    }
+
+                    @Override
+                    public void onError(final DirectoryExpander expander, IOException e) {
+                        mHandler.post(new Runnable() {
+                            @Override
+                            public void run() {
+                                if (expander != mExpander)
+                                    return;
+                                mExpander = null;
+                                dismissProgress();
+                                Toast.makeText(FileChooserActivity.this,
+                                        R.string.error_selecting_file, Toast.LENGTH_SHORT)
+                                        .show();
+                            }
+                        });
+                    }
+                }, FileSearch.getDefaultExecutor()).start();
+    }
+
+    private final Runnable mProgressUpdater = new Runnable() {
+        @Override
+        public void run() {
+            mProgressPosted = false;
+            if (mProgressDialog != null)
+                mProgressDialog.setMessage(getString(R.string.listing_files_progress,
+                        mExpandedFiles, Formatter.formatFileSize(FileChooserActivity.this,
+                                mExpandedBytes)));
+        }
+    };
+
+    /**
+     * Stop listing the selected directory, if it is being listed.
+     */
+    private void cancelExpansion() {
+        if (mExpander != null) {
+            mExpander.cancel();
+            mExpander = null;
+        }
+        dismissProgress();
+    }
+
+    private void dismissProgress() {
+        if (mProgressDialog != null) {
+            mProgressDialog.dismiss();
+            mProgressDialog = null;
+        }
+    }
+
+    /**
+     * Finish this Activity with the selected directory and the manifest of
+     * its files.
+     */
+    private void finishWithManifest(File dir, File manifest, boolean truncated) {
+        setResult(RESULT_OK, new Intent().setData(Uri.fromFile(dir))
+                .putExtra(EXTRA_MANIFEST, manifest.getAbsolutePath())
+                .putExtra(EXTRA_MANIFEST_TRUNCATED, truncated));
+        finish();
+    }
+
+    /**
+     * @return Whether the user can select several files.
+     */
+    private boolean isMultipleSelection() {
+        return getIntent().getBooleanExtra(EXTRA_ALLOW_MULTIPLE, false);
+    }
+
+    @Override
+    public Set<String> getSelectedPaths() {
+        return isMultipleSelection() ? mSelectedPaths : null;
+    }
+
     /**
      * Called when the user selects a File
      *
@@ -191,6 +517,11 @@ public class FileChooserActivity extends FragmentActivity implements
         if (file != null) {
             if (file.isDirectory()) {
                 replaceFragment(file);
+            } else if (isMultipleSelection()) {
+                final String path = file.getAbsolutePath();
+                if (!mSelectedPaths.remove(path))
+                    mSelectedPaths.add(path);
+                supportInvalidateOptionsMenu();
             } else {
                 finishWithResult(file);
             }
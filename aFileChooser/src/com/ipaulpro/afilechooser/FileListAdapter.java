@@ -17,18 +17,24 @@
 package com.ipaulpro.afilechooser;
 
 import android.content.Context;
+import android.content.res.TypedArray;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
 import android.widget.BaseAdapter;
+import android.widget.CheckedTextView;
 import android.widget.TextView;
 
+import com.ipaulpro.afilechooser.utils.FileEntry;
+
 import java.io.File;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Set;
 
 /**
- * List adapter for Files.
+ * List adapter for FileEntries. Rows are bound from the attributes each
+ * FileEntry already holds, without touching the file system.
  * 
  * @version 2013-12-11
  * @author paulburke (ipaulpro)
@@ -39,25 +45,51 @@ public class FileListAdapter extends BaseAdapter {
     private final static int ICON_FILE = R.drawable.ic_file;
 
     private final LayoutInflater mInflater;
+    private final ThumbnailLoader mThumbnailLoader;
+    private final int mCheckMark;
 
-    private List<File> mData = new ArrayList<File>();
+    private List<FileEntry> mData = new ArrayList<FileEntry>();
+    private Set<String> mSelectedPaths;
 
     public FileListAdapter(Context context) {
         mInflater = LayoutInflater.from(context);
+        mThumbnailLoader = ThumbnailLoader.getInstance(context);
+
+        final TypedArray a = context.obtainStyledAttributes(new int[] {
+                android.R.attr.listChoiceIndicatorMultiple
+        });
+        mCheckMark = a.getResourceId(0, 0);
+        a.recycle();
+    }
+
+    /**
+     * Show a check mark on files, checked if their path is selected.
+     *
+     * @param selectedPaths The absolute paths of the selected files, or null
+     *            to show no check marks.
+     */
+    public void setSelectedPaths(Set<String> selectedPaths) {
+        mSelectedPaths = selectedPaths;
+        notifyDataSetChanged();
+    }
+
+    public void add(FileEntry entry) {
+        mData.add(entry);
+        notifyDataSetChanged();
     }
 
-    public void add(File file) {
-        mData.add(file);
+    public void addAll(List<FileEntry> entries) {
+        mData.addAll(entries);
         notifyDataSetChanged();
     }
 
-    public void remove(File file) {
-        mData.remove(file);
+    public void remove(FileEntry entry) {
+        mData.remove(entry);
         notifyDataSetChanged();
     }
 
-    public void insert(File file, int index) {
-        mData.add(index, file);
+    public void insert(FileEntry entry, int index) {
+        mData.add(index, entry);
         notifyDataSetChanged();
     }
 
@@ -67,10 +99,18 @@ public class FileListAdapter extends BaseAdapter {
     }
 
     @Override
-    public File getItem(int position) {
+    public FileEntry getItem(int position) {
         return mData.get(position);
     }
 
+    /**
+     * @param position The position of the item.
+     * @return The File of the item at position.
+     */
+    public File getFile(int position) {
+        return mData.get(position).getFile();
+    }
+
     @Override
     public long getItemId(int position) {
         return position;
@@ -81,7 +121,7 @@ public class FileListAdapter extends BaseAdapter {
         return mData.size();
     }
 
-    public List<File> getListItems() {
+    public List<FileEntry> getListItems() {
         return mData;
     }
 
@@ -91,7 +131,7 @@ public class FileListAdapter extends BaseAdapter {
      *
      * @param data
      */
-    public void setListItems(List<File> data) {
+    public void setListItems(List<FileEntry> data) {
         mData = data;
         notifyDataSetChanged();
     }
@@ -106,16 +146,39 @@ public class FileListAdapter extends BaseAdapter {
         TextView view = (TextView) row;
 
         // Get the file at the current position
-        final File file = getItem(position);
+        final FileEntry entry = getItem(position);
 
         // Set the TextView as the file name
-        view.setText(file.getName());
+        view.setText(entry.getName());
 
         // If the item is not a directory, use the file icon
-        int icon = file.isDirectory() ? ICON_FOLDER : ICON_FILE;
+        int icon = entry.isDirectory() ? ICON_FOLDER : ICON_FILE;
         view.setCompoundDrawablesWithIntrinsicBounds(icon, 0, 0, 0);
 
+        // Only files can be checked; directories are opened
+        if (mSelectedPaths != null) {
+            final CheckedTextView checkable = (CheckedTextView) view;
+            checkable.setCheckMarkDrawable(entry.isDirectory() ? 0 : mCheckMark);
+            checkable.setChecked(!entry.isDirectory()
+                    && mSelectedPaths.contains(entry.getPath()));
+        }
+
+        // Replace the icon with a thumbnail for images and videos, once loaded
+        if (ThumbnailLoader.canLoad(entry))
+            mThumbnailLoader.bind(view, entry);
+        else
+            mThumbnailLoader.cancel(view);
+
         return row;
     }
 
+    /**
+     * Stop loading the thumbnail for a row that is no longer shown.
+     *
+     * @param row The row.
+     */
+    public void recycleView(View row) {
+        mThumbnailLoader.cancel(row);
+    }
+
 }
\ No newline at end of file
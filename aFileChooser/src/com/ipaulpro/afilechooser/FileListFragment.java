@@ -19,14 +19,23 @@ package com.ipaulpro.afilechooser;
 import android.app.Activity;
 import android.os.Bundle;
 import android.os.Environment;
+import android.os.Handler;
 import android.support.v4.app.ListFragment;
 import android.support.v4.app.LoaderManager;
 import android.support.v4.content.Loader;
 import android.view.View;
+import android.widget.AbsListView;
 import android.widget.ListView;
 
+import com.ipaulpro.afilechooser.utils.FileEntry;
+import com.ipaulpro.afilechooser.utils.FileSearch;
+import com.ipaulpro.afilechooser.utils.FileSorter;
+import com.ipaulpro.afilechooser.utils.FileUtils;
+
 import java.io.File;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.Set;
 
 /**
  * Fragment that displays a list of Files in a given path.
@@ -35,7 +44,7 @@ import java.util.List;
  * @author paulburke (ipaulpro)
  */
 public class FileListFragment extends ListFragment implements
-        LoaderManager.LoaderCallbacks<List<File>> {
+        LoaderManager.LoaderCallbacks<List<FileEntry>>, FileLoader.OnBatchLoadedListener {
 
     /**
      * Interface to listen for events.
@@ -49,12 +58,53 @@ public class FileListFragment extends ListFragment implements
         public void onFileSelected(File file);
     }
 
+    /**
+     * Interface for activities that let the user select several files.
+     * Selected files are checked in the list, and selecting a file again
+     * through {@link Callbacks#onFileSelected(File)} is expected to toggle
+     * it.
+     */
+    public interface SelectionCallbacks {
+        /**
+         * @return The absolute paths of the selected files, shared by all
+         *         lists, or null if only one file can be selected.
+         */
+        public Set<String> getSelectedPaths();
+    }
+
+    /**
+     * Interface for activities that retain the state of each list across
+     * configuration changes.
+     */
+    public interface NavigationCallbacks {
+        /**
+         * @return The model shared by all lists of the back stack.
+         */
+        public NavigationModel getNavigationModel();
+    }
+
+    /** Maximum number of files found by a search. */
+    public static final int SEARCH_LIMIT = 500;
+
     private static final int LOADER_ID = 0;
 
+    private static final String BATCH_SIZE = "batch_size";
+    private static final String FIRST_BATCH_MILLIS = "first_batch_millis";
+    private static final String SORT_ORDER = "sort_order";
+
     private FileListAdapter mAdapter;
     private String mPath;
+    private int mBatchSize;
+    private long mFirstBatchMillis;
+    private int mSortOrder = FileSorter.SORT_BY_NAME;
+    private boolean mLoaded;
+    private FileSearch mSearch;
+    private final Handler mHandler = new Handler();
 
     private Callbacks mListener;
+    private Set<String> mSelectedPaths;
+    private NavigationModel mNavigationModel;
+    private boolean mScrollRestored;
 
     /**
      * Create a new instance with the given file path.
@@ -63,9 +113,28 @@ public class FileListFragment extends ListFragment implements
      * @return A new Fragment with the given file path.
      */
     public static FileListFragment newInstance(String path) {
+        return newInstance(path, FileLoader.DEFAULT_BATCH_SIZE,
+                FileLoader.DEFAULT_FIRST_BATCH_MILLIS);
+    }
+
+    /**
+     * Create a new instance with the given file path, showing entries in
+     * batches while a large directory is still loading.
+     *
+     * @param path The absolute path of the file (directory) to display.
+     * @param batchSize The number of entries added per batch, or 0 to show the
+     *            list only once it is complete.
+     * @param firstBatchMillis The maximum time before the first batch is
+     *            shown, in milliseconds.
+     * @return A new Fragment with the given file path.
+     */
+    public static FileListFragment newInstance(String path, int batchSize,
+            long firstBatchMillis) {
         FileListFragment fragment = new FileListFragment();
         Bundle args = new Bundle();
         args.putString(FileChooserActivity.PATH, path);
+        args.putInt(BATCH_SIZE, batchSize);
+        args.putLong(FIRST_BATCH_MILLIS, firstBatchMillis);
         fragment.setArguments(args);
 
         return fragment;
@@ -81,6 +150,8 @@ public class FileListFragment extends ListFragment implements
             throw new ClassCastException(activity.toString()
                     + " must implement FileListFragment.Callbacks");
         }
+        if (activity instanceof SelectionCallbacks)
+            mSelectedPaths = ((SelectionCallbacks) activity).getSelectedPaths();
     }
 
     @Override
@@ -88,9 +159,114 @@ public class FileListFragment extends ListFragment implements
         super.onCreate(savedInstanceState);
 
         mAdapter = new FileListAdapter(getActivity());
+        mAdapter.setSelectedPaths(mSelectedPaths);
         mPath = getArguments() != null ? getArguments().getString(
                 FileChooserActivity.PATH) : Environment
                 .getExternalStorageDirectory().getAbsolutePath();
+        mBatchSize = getArguments() != null ? getArguments().getInt(BATCH_SIZE,
+                FileLoader.DEFAULT_BATCH_SIZE) : FileLoader.DEFAULT_BATCH_SIZE;
+        mFirstBatchMillis = getArguments() != null ? getArguments().getLong(
+                FIRST_BATCH_MILLIS, FileLoader.DEFAULT_FIRST_BATCH_MILLIS)
+                : FileLoader.DEFAULT_FIRST_BATCH_MILLIS;
+        if (savedInstanceState != null)
+            mSortOrder = savedInstanceState.getInt(SORT_ORDER, FileSorter.SORT_BY_NAME);
+    }
+
+    @Override
+    public void onSaveInstanceState(Bundle outState) {
+        super.onSaveInstanceState(outState);
+
+        outState.putInt(SORT_ORDER, mSortOrder);
+    }
+
+    /**
+     * Change the order of the list. Entries that were already read are
+     * re-sorted in memory, without listing the directory again.
+     *
+     * @param sortOrder One of the FileSorter SORT_BY constants.
+     */
+    public void setSortOrder(int sortOrder) {
+        mSortOrder = sortOrder;
+
+        Loader<List<FileEntry>> loader = getLoaderManager().getLoader(LOADER_ID);
+        if (loader != null)
+            ((FileLoader) loader).setSortOrder(sortOrder);
+    }
+
+    /**
+     * @return The order of the list, one of the FileSorter SORT_BY constants.
+     */
+    public int getSortOrder() {
+        return mSortOrder;
+    }
+
+    /**
+     * Search the directory and its subdirectories instead of listing it.
+     * Matches are added to the list as each directory is searched, until
+     * {@link #SEARCH_LIMIT} files are found or {@link #stopSearch()} is
+     * called.
+     *
+     * @param criteria What the files must match.
+     */
+    public void startSearch(FileSearch.Criteria criteria) {
+        if (mSearch != null)
+            mSearch.cancel();
+
+        mAdapter.clear();
+        setEmptyText(getString(R.string.no_matches));
+        setListShown(false);
+        mSearch = FileUtils.searchFiles(new File(mPath), criteria, SEARCH_LIMIT,
+                new FileSearch.Callback() {
+                    @Override
+                    public void onFilesFound(final FileSearch search,
+                            final List<FileEntry> files) {
+                        mHandler.post(new Runnable() {
+                            @Override
+                            public void run() {
+                                // Drop results of a search that was replaced
+                                if (search != mSearch)
+                                    return;
+                                mAdapter.addAll(files);
+                                showList();
+                            }
+                        });
+                    }
+
+                    @Override
+                    public void onSearchFinished(final FileSearch search) {
+                        mHandler.post(new Runnable() {
+                            @Override
+                            public void run() {
+                                if (search == mSearch)
+                                    showList();
+                            }
+                        });
+                    }
+                });
+    }
+
+    /**
+     * Stop searching and list the directory again.
+     */
+    public void stopSearch() {
+        if (mSearch == null)
+            return;
+
+        mSearch.cancel();
+        mSearch = null;
+        mLoaded = false;
+        mAdapter.clear();
+        setEmptyText(getString(R.string.empty_directory));
+        setListShown(false);
+        getLoaderManager().restartLoader(LOADER_ID, null, this);
+    }
+
+    /**
+     * @return Whether the list shows search results rather than the
+     *         directory.
+     */
+    public boolean isSearching() {
+        return mSearch != null;
     }
 
     @Override
@@ -99,29 +275,128 @@ public class FileListFragment extends ListFragment implements
         setListAdapter(mAdapter);
         setListShown(false);
 
-        getLoaderManager().initLoader(LOADER_ID, null, this);
+        getListView().setRecyclerListener(new AbsListView.RecyclerListener() {
+            @Override
+            public void onMovedToScrapHeap(View view) {
+                mAdapter.recycleView(view);
+            }
+        });
+
+        // Fetched here rather than in onAttach, as the Activity creates the
+        // model in onCreate, after fragments are attached again
+        if (getActivity() instanceof NavigationCallbacks)
+            mNavigationModel = ((NavigationCallbacks) getActivity()).getNavigationModel();
+
+        // Show the listing retained for this level at once; the Loader then
+        // replaces it if the directory changed
+        mScrollRestored = false;
+        if (mNavigationModel != null && mAdapter.isEmpty() && mSearch == null) {
+            final List<FileEntry> listing = mNavigationModel.getListing(mPath);
+            if (listing != null) {
+                mLoaded = true;
+                mAdapter.setListItems(new ArrayList<FileEntry>(listing));
+                setListShownNoAnimation(true);
+            }
+        }
+        restoreScrollPosition();
+
+        // A Loader retained across a configuration change still reports
+        // batches to the fragment that created it
+        final FileLoader loader = (FileLoader) getLoaderManager().initLoader(
+                LOADER_ID, null, this);
+        if (mBatchSize > 0)
+            loader.setOnBatchLoadedListener(this, mBatchSize, mFirstBatchMillis);
 
         super.onActivityCreated(savedInstanceState);
     }
 
+    @Override
+    public void onDestroyView() {
+        final Loader<List<FileEntry>> loader = getLoaderManager().getLoader(LOADER_ID);
+        if (loader != null)
+            ((FileLoader) loader).setOnBatchLoadedListener(null, mBatchSize, mFirstBatchMillis);
+
+        final ListView listView = getListView();
+        if (mNavigationModel != null && mSearch == null)
+            mNavigationModel.saveScrollPosition(mPath, listView);
+
+        // Don't keep loading thumbnails for rows that are going away
+        for (int i = 0; i < listView.getChildCount(); i++)
+            mAdapter.recycleView(listView.getChildAt(i));
+
+        super.onDestroyView();
+    }
+
+    @Override
+    public void onDestroy() {
+        if (mSearch != null)
+            mSearch.cancel();
+
+        super.onDestroy();
+    }
+
     @Override
     public void onListItemClick(ListView l, View v, int position, long id) {
         FileListAdapter adapter = (FileListAdapter) l.getAdapter();
         if (adapter != null) {
-            File file = (File) adapter.getItem(position);
-            mPath = file.getAbsolutePath();
-            mListener.onFileSelected(file);
+            final FileEntry entry = adapter.getItem(position);
+            mListener.onFileSelected(entry.getFile());
+
+            // Show the file checked or unchecked by the selection
+            if (mSelectedPaths != null && !entry.isDirectory())
+                adapter.notifyDataSetChanged();
         }
     }
 
     @Override
-    public Loader<List<File>> onCreateLoader(int id, Bundle args) {
-        return new FileLoader(getActivity(), mPath);
+    public Loader<List<FileEntry>> onCreateLoader(int id, Bundle args) {
+        FileLoader loader = new FileLoader(getActivity(), mPath);
+        loader.setSortOrder(mSortOrder);
+        if (mBatchSize > 0)
+            loader.setOnBatchLoadedListener(this, mBatchSize, mFirstBatchMillis);
+        return loader;
     }
 
     @Override
-    public void onLoadFinished(Loader<List<File>> loader, List<File> data) {
+    public void onBatchLoaded(FileLoader loader, List<FileEntry> batch) {
+        // Partial results only fill the list until the first full result
+        if (mLoaded || mSearch != null)
+            return;
+
+        mAdapter.addAll(batch);
+        showList();
+    }
+
+    @Override
+    public void onLoadFinished(Loader<List<FileEntry>> loader, List<FileEntry> data) {
+        mLoaded = true;
+        // Search results replace the listing until the search is stopped
+        if (mSearch != null)
+            return;
+
         mAdapter.setListItems(data);
+        showList();
+        restoreScrollPosition();
+
+        if (mNavigationModel != null)
+            mNavigationModel.setListing(mPath, data);
+    }
+
+    /**
+     * Scroll back to where the list was left, once it has entries.
+     */
+    private void restoreScrollPosition() {
+        if (mScrollRestored || mNavigationModel == null || mAdapter.isEmpty()
+                || getView() == null)
+            return;
+
+        mScrollRestored = mNavigationModel.restoreScrollPosition(mPath, getListView());
+    }
+
+    private void showList() {
+        // Results can still arrive while the fragment is on the back stack
+        if (getView() == null)
+            return;
 
         if (isResumed())
             setListShown(true);
@@ -130,7 +405,8 @@ public class FileListFragment extends ListFragment implements
     }
 
     @Override
-    public void onLoaderReset(Loader<List<File>> loader) {
+    public void onLoaderReset(Loader<List<FileEntry>> loader) {
+        mLoaded = false;
         mAdapter.clear();
     }
 }
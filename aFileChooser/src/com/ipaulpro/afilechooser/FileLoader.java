@@ -17,78 +17,209 @@
 package com.ipaulpro.afilechooser;
 
 import android.content.Context;
-import android.os.FileObserver;
+import android.os.Handler;
+import android.os.Looper;
 import android.support.v4.content.AsyncTaskLoader;
 
+import com.ipaulpro.afilechooser.utils.DirectoryScanner;
+import com.ipaulpro.afilechooser.utils.FileEntry;
+import com.ipaulpro.afilechooser.utils.FileSorter;
 import com.ipaulpro.afilechooser.utils.FileUtils;
 
 import java.io.File;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.List;
 
 /**
- * Loader that returns a list of Files in a given file path.
+ * Loader that returns a list of FileEntries in a given file path.
  * 
  * @version 2013-12-11
  * @author paulburke (ipaulpro)
  */
-public class FileLoader extends AsyncTaskLoader<List<File>> {
+public class FileLoader extends AsyncTaskLoader<List<FileEntry>> {
 
-	private static final int FILE_OBSERVER_MASK = FileObserver.CREATE
-			| FileObserver.DELETE | FileObserver.DELETE_SELF
-			| FileObserver.MOVED_FROM | FileObserver.MOVED_TO
-			| FileObserver.MODIFY | FileObserver.MOVE_SELF;
+	/**
+	 * Interface to receive partial results while a directory is loading.
+	 */
+	public interface OnBatchLoadedListener {
+		/**
+		 * Called on the main thread with unsorted entries that were just
+		 * read. The complete, sorted list is still delivered as the
+		 * Loader's result.
+		 *
+		 * @param loader The Loader that read the entries.
+		 * @param batch The entries, in directory order.
+		 */
+		public void onBatchLoaded(FileLoader loader, List<FileEntry> batch);
+	}
+
+	/** Default number of entries per partial result. */
+	public static final int DEFAULT_BATCH_SIZE = 200;
+	/** Default time before the first partial result is delivered, in ms. */
+	public static final long DEFAULT_FIRST_BATCH_MILLIS = 150;
 
-	private FileObserver mFileObserver;
+	/** Shares the one FileObserver of the path with the DirectoryCache. */
+	private final DirectoryWatcher.Listener mWatchListener = new DirectoryWatcher.Listener() {
+		@Override
+		public void onDirectoryChanged(String path) {
+			// Make sure the reload doesn't pick up the stale listing
+			DirectoryCache.invalidate(mPath);
+			mResortOnly = false;
+			onContentChanged();
+		}
+	};
+	private boolean mWatching;
 
-	private List<File> mData;
+	private List<FileEntry> mData;
 	private String mPath;
 
+	private volatile List<FileEntry> mEntries;
+	private volatile int mSortOrder = FileSorter.SORT_BY_NAME;
+	private volatile boolean mResortOnly;
+
+	private final Handler mHandler = new Handler(Looper.getMainLooper());
+	private OnBatchLoadedListener mBatchListener;
+	private int mBatchSize = DEFAULT_BATCH_SIZE;
+	private long mFirstBatchMillis = DEFAULT_FIRST_BATCH_MILLIS;
+
 	public FileLoader(Context context, String path) {
 		super(context);
 		this.mPath = path;
 	}
 
+	/**
+	 * Deliver partial results to the given listener while a directory is
+	 * read. Only the first load reports partial results; reloads after a
+	 * change keep showing the previous result until the new one is ready.
+	 *
+	 * @param listener The listener, or null to disable partial results.
+	 * @param batchSize The number of entries in each partial result.
+	 * @param firstBatchMillis The maximum time before the first partial result
+	 *            is delivered, in milliseconds.
+	 */
+	public void setOnBatchLoadedListener(OnBatchLoadedListener listener, int batchSize,
+			long firstBatchMillis) {
+		mBatchListener = listener;
+		mBatchSize = batchSize;
+		mFirstBatchMillis = firstBatchMillis;
+	}
+
+	/**
+	 * Set the order of the loaded list. If the directory has already been
+	 * read, its entries are re-sorted in memory without touching the disk.
+	 *
+	 * @param sortOrder One of the FileSorter SORT_BY constants.
+	 * @see FileSorter#sort(List, int)
+	 */
+	public void setSortOrder(int sortOrder) {
+		if (sortOrder == mSortOrder)
+			return;
+
+		mSortOrder = sortOrder;
+		if (mEntries != null)
+			mResortOnly = true;
+		onContentChanged();
+	}
+
+	/**
+	 * @return The order of the loaded list.
+	 */
+	public int getSortOrder() {
+		return mSortOrder;
+	}
+
 	@Override
-	public List<File> loadInBackground() {
-
-        ArrayList<File> list = new ArrayList<File>();
-
-        // Current directory File instance
-        final File pathDir = new File(mPath);
-
-        // List file in this directory with the directory filter
-        final File[] dirs = pathDir.listFiles(FileUtils.sDirFilter);
-        if (dirs != null) {
-            // Sort the folders alphabetically
-            Arrays.sort(dirs, FileUtils.sComparator);
-            // Add each folder to the File list for the list adapter
-            for (File dir : dirs)
-                list.add(dir);
-        }
-
-        // List file in this directory with the file filter
-        final File[] files = pathDir.listFiles(FileUtils.sFileFilter);
-        if (files != null) {
-            // Sort the files alphabetically
-            Arrays.sort(files, FileUtils.sComparator);
-            // Add each file to the File list for the list adapter
-            for (File file : files)
-                list.add(file);
-        }
-
-        return list;
+	public List<FileEntry> loadInBackground() {
+
+        List<FileEntry> entries = mEntries;
+
+        // Changing the sort order only re-sorts the entries already read
+        if (entries == null || !mResortOnly)
+            entries = loadEntries();
+        mResortOnly = false;
+        mEntries = entries;
+
+        final List<FileEntry> sorted = new ArrayList<FileEntry>(entries);
+        FileSorter.sort(sorted, mSortOrder);
+        return sorted;
+	}
+
+	/**
+	 * Read the entries of the directory, from the cache if possible.
+	 *
+	 * @return The directories followed by the files, in directory order.
+	 */
+	private List<FileEntry> loadEntries() {
+        return readDirectory(mPath, mBatchSize, mFirstBatchMillis,
+                mData == null ? mBatchPoster : null);
+	}
+
+	/**
+	 * Read the entries of a directory, from the cache if possible, and cache
+	 * them.
+	 *
+	 * @param path The absolute path of the directory.
+	 * @param batchSize The number of entries in each partial result.
+	 * @param firstBatchMillis The maximum time before the first partial
+	 *            result, in milliseconds.
+	 * @param listener The listener for partial results, or null.
+	 * @return The directories followed by the files, in directory order.
+	 */
+	static List<FileEntry> readDirectory(String path, int batchSize, long firstBatchMillis,
+			DirectoryScanner.BatchListener listener) {
+
+        // Going back up the tree usually finds the listing already cached
+        final List<FileEntry> cached = DirectoryCache.get(path);
+        if (cached != null)
+            return cached;
+
+        final File pathDir = new File(path);
+        final long lastModified = pathDir.lastModified();
+
+        // Read the current directory and the attributes of each entry once,
+        // so that any sort order can be applied without going back to disk
+        final DirectoryScanner.Result scan = DirectoryScanner.scan(pathDir, false, true,
+                batchSize, firstBatchMillis, listener);
+
+        ArrayList<FileEntry> entries = new ArrayList<FileEntry>(scan.directories.size()
+                + scan.files.size());
+        entries.addAll(scan.directories);
+
+        // Resolve MIME types here, so the list never needs to on the UI thread
+        for (FileEntry file : scan.files)
+            entries.add(file.withMimeType(FileUtils.getMimeType(file)));
+
+        DirectoryCache.put(path, entries, lastModified);
+        return entries;
 	}
 
+	/**
+	 * Posts each partial result from the scanning thread to the main thread.
+	 */
+	private final DirectoryScanner.BatchListener mBatchPoster = new DirectoryScanner.BatchListener() {
+		@Override
+		public void onBatch(final List<FileEntry> batch) {
+			if (mBatchListener == null)
+				return;
+
+			mHandler.post(new Runnable() {
+				@Override
+				public void run() {
+					if (mBatchListener != null && isStarted())
+						mBatchListener.onBatchLoaded(FileLoader.this, batch);
+				}
+			});
+		}
+	};
+
 	@Override
-	public void deliverResult(List<File> data) {
+	public void deliverResult(List<FileEntry> data) {
 		if (isReset()) {
 			onReleaseResources(data);
 			return;
 		}
 
-		List<File> oldData = mData;
+		List<FileEntry> oldData = mData;
 		mData = data;
 
 		if (isStarted())
@@ -103,15 +234,8 @@ public class FileLoader extends AsyncTaskLoader<List<File>> {
 		if (mData != null)
 			deliverResult(mData);
 
-		if (mFileObserver == null) {
-			mFileObserver = new FileObserver(mPath, FILE_OBSERVER_MASK) {
-				@Override
-				public void onEvent(int event, String path) {
-					onContentChanged();
-				}
-			};
-		}
-		mFileObserver.startWatching();
+		if (!mWatching)
+			mWatching = DirectoryWatcher.watch(mPath, mWatchListener);
 
 		if (takeContentChanged() || mData == null)
 			forceLoad();
@@ -125,6 +249,7 @@ public class FileLoader extends AsyncTaskLoader<List<File>> {
 	@Override
 	protected void onReset() {
 		onStopLoading();
+		mHandler.removeCallbacksAndMessages(null);
 
 		if (mData != null) {
 			onReleaseResources(mData);
@@ -133,17 +258,17 @@ public class FileLoader extends AsyncTaskLoader<List<File>> {
 	}
 
 	@Override
-	public void onCanceled(List<File> data) {
+	public void onCanceled(List<FileEntry> data) {
 		super.onCanceled(data);
 
 		onReleaseResources(data);
 	}
 
-	protected void onReleaseResources(List<File> data) {
+	protected void onReleaseResources(List<FileEntry> data) {
 
-		if (mFileObserver != null) {
-			mFileObserver.stopWatching();
-			mFileObserver = null;
+		if (mWatching) {
+			DirectoryWatcher.unwatch(mPath, mWatchListener);
+			mWatching = false;
 		}
 	}
 }
\ No newline at end of file
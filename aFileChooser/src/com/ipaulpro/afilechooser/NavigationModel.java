@@ -0,0 +1,241 @@
+/*
+ * Copyright (C) 2013 Paul Burke
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ipaulpro.afilechooser;
+
+import android.content.ComponentCallbacks2;
+import android.os.Looper;
+import android.os.MessageQueue;
+import android.os.Process;
+import android.view.View;
+import android.widget.ListView;
+
+import com.ipaulpro.afilechooser.utils.FileEntry;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The state of each level of the back stack of a {@link FileChooserActivity}:
+ * the listing last shown and the scroll position. It is retained across
+ * configuration changes, so a recreated {@link FileListFragment} shows its
+ * listing where it was left instead of reading the directory again.
+ * Listings are released by {@link #trimMemory(int)} as memory runs low.<br>
+ * <br>
+ * Once a listing is shown and the main thread is idle, the first
+ * {@link #PREFETCH_COUNT} directories in it are read into the
+ * {@link DirectoryCache} on a background thread, so opening one of them
+ * doesn't wait for the disk.<br>
+ * <br>
+ * Except for prefetching, the model is only used on the main thread.
+ *
+ * @version 2013-12-11
+ * @author paulburke (ipaulpro)
+ */
+public class NavigationModel {
+
+    /** Number of directories of a listing read ahead of time. */
+    public static final int PREFETCH_COUNT = 3;
+
+    private static final String TAG = "NavigationModel";
+
+    /**
+     * What is retained of a level of the back stack.
+     */
+    private static class Level {
+        List<FileEntry> listing;
+        int position = -1;
+        int top;
+    }
+
+    private static final ThreadPoolExecutor sPrefetchExecutor = new ThreadPoolExecutor(1, 1,
+            0, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                @Override
+                public Thread newThread(final Runnable r) {
+                    return new Thread(new Runnable() {
+                        @Override
+                        public void run() {
+                            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                            r.run();
+                        }
+                    }, TAG);
+                }
+            });
+
+    private final HashMap<String, Level> mLevels = new HashMap<String, Level>();
+    private String mCurrentPath;
+    private List<FileEntry> mPrefetchListing;
+    private boolean mPrefetchScheduled;
+
+    /**
+     * Set the directories of the back stack. Levels that are no longer on it
+     * are released.
+     *
+     * @param paths The absolute paths of the directories, the one shown last.
+     */
+    public void setBackStack(List<String> paths) {
+        mLevels.keySet().retainAll(paths);
+        mCurrentPath = paths.isEmpty() ? null : paths.get(paths.size() - 1);
+    }
+
+    /**
+     * @param path The absolute path of a directory on the back stack.
+     * @return The listing last shown for the directory, which can't be
+     *         modified, or null if it was released.
+     */
+    public List<FileEntry> getListing(String path) {
+        final Level level = mLevels.get(path);
+        return level != null ? level.listing : null;
+    }
+
+    /**
+     * Keep the listing shown for a directory, and read the first
+     * directories in it ahead of time.
+     *
+     * @param path The absolute path of the directory.
+     * @param listing The entries shown, in order. A copy is kept.
+     */
+    public void setListing(String path, List<FileEntry> listing) {
+        getLevel(path).listing = Collections.unmodifiableList(new ArrayList<FileEntry>(listing));
+        if (path.equals(mCurrentPath))
+            prefetch(listing);
+    }
+
+    /**
+     * Keep the scroll position of the list of a directory.
+     *
+     * @param path The absolute path of the directory.
+     * @param listView The list, before its view is destroyed.
+     */
+    public void saveScrollPosition(String path, ListView listView) {
+        final Level level = getLevel(path);
+        final View first = listView.getChildAt(0);
+        level.position = listView.getFirstVisiblePosition();
+        level.top = first != null ? first.getTop() : 0;
+    }
+
+    /**
+     * Scroll the list of a directory back to where it was left.
+     *
+     * @param path The absolute path of the directory.
+     * @param listView The list, once its adapter has the entries.
+     * @return Whether a position was restored.
+     */
+    public boolean restoreScrollPosition(String path, ListView listView) {
+        final Level level = mLevels.get(path);
+        if (level == null || level.position < 0 || level.position >= listView.getCount())
+            return false;
+
+        listView.setSelectionFromTop(level.position, level.top);
+        return true;
+    }
+
+    /**
+     * Release memory as requested by
+     * {@link ComponentCallbacks2#onTrimMemory(int)}. Prefetching stops first,
+     * then the listings of the levels that are not shown are released, and
+     * at last every listing and the {@link DirectoryCache}. Scroll positions
+     * are kept, as they are tiny.
+     *
+     * @param level The trim level.
+     */
+    public void trimMemory(int level) {
+        cancelPrefetch();
+        if (level < ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW)
+            return;
+
+        final boolean all = level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE;
+        for (Map.Entry<String, Level> entry : mLevels.entrySet()) {
+            if (all || !entry.getKey().equals(mCurrentPath))
+                entry.getValue().listing = null;
+        }
+        if (all)
+            DirectoryCache.clear();
+        else
+            DirectoryCache.trimToSize(DirectoryCache.MAX_ENTRIES / 4);
+    }
+
+    /**
+     * Stop reading directories ahead of time, for example when the chooser
+     * is finishing.
+     */
+    public void cancelPrefetch() {
+        mPrefetchListing = null;
+        sPrefetchExecutor.getQueue().clear();
+    }
+
+    private Level getLevel(String path) {
+        Level level = mLevels.get(path);
+        if (level == null) {
+            level = new Level();
+            mLevels.put(path, level);
+        }
+        return level;
+    }
+
+    /**
+     * Read the first directories of a listing into the DirectoryCache, once
+     * the main thread is idle. Directories of a listing shown before that
+     * are no longer read.
+     */
+    private void prefetch(List<FileEntry> listing) {
+        mPrefetchListing = listing;
+        if (mPrefetchScheduled)
+            return;
+
+        mPrefetchScheduled = true;
+        Looper.myQueue().addIdleHandler(mPrefetchStarter);
+    }
+
+    private final MessageQueue.IdleHandler mPrefetchStarter = new MessageQueue.IdleHandler() {
+        @Override
+        public boolean queueIdle() {
+            mPrefetchScheduled = false;
+            final List<FileEntry> listing = mPrefetchListing;
+            mPrefetchListing = null;
+            if (listing == null)
+                return false;
+
+            final ArrayList<String> paths = new ArrayList<String>(PREFETCH_COUNT);
+            for (FileEntry entry : listing) {
+                if (paths.size() >= PREFETCH_COUNT)
+                    break;
+                if (entry.isDirectory())
+                    paths.add(entry.getPath());
+            }
+
+            // The most likely next directories are those of the latest listing
+            sPrefetchExecutor.getQueue().clear();
+            for (final String path : paths) {
+                // Directories already cached are returned without reading them
+                sPrefetchExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        FileLoader.readDirectory(path, 0, 0, null);
+                    }
+                });
+            }
+            return false;
+        }
+    };
+}
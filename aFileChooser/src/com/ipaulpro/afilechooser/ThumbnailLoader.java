@@ -0,0 +1,344 @@
+/*
+ * Copyright (C) 2013 Paul Burke
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ipaulpro.afilechooser;
+
+import android.content.Context;
+import android.content.res.Resources;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.drawable.BitmapDrawable;
+import android.media.ThumbnailUtils;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.provider.MediaStore;
+import android.support.v4.util.LruCache;
+import android.util.Log;
+import android.view.View;
+import android.widget.TextView;
+
+import com.ipaulpro.afilechooser.utils.DiskCache;
+import com.ipaulpro.afilechooser.utils.FileEntry;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Loads image and video thumbnails into list rows in the background. Decoded
+ * thumbnails are kept in a memory cache bounded by bytes, and encoded ones in
+ * a disk cache under the app's cache directory. Rows that request the same
+ * file share one decode, and a request is dropped once no row waits for it.<br>
+ * <br>
+ * All methods must be called on the main thread.
+ *
+ * @version 2013-12-11
+ * @author paulburke (ipaulpro)
+ */
+public class ThumbnailLoader {
+
+    private static final String TAG = "ThumbnailLoader";
+
+    private static final int THREAD_COUNT = 2;
+    private static final String DISK_CACHE_DIR = "thumbnails";
+    private static final long DISK_CACHE_BYTES = 10 * 1024 * 1024;
+    private static final int JPEG_QUALITY = 80;
+
+    private static ThumbnailLoader sInstance;
+
+    /**
+     * A thumbnail to load, and the rows waiting for it. The newest request is
+     * run first, since it belongs to the rows that just scrolled into view.
+     */
+    private class Request implements Runnable, Comparable<Request> {
+        final String key;
+        final FileEntry entry;
+        final long sequence;
+        final ArrayList<TextView> targets = new ArrayList<TextView>(1);
+        volatile boolean cancelled;
+
+        Request(String key, FileEntry entry, long sequence) {
+            this.key = key;
+            this.entry = entry;
+            this.sequence = sequence;
+        }
+
+        @Override
+        public void run() {
+            if (cancelled)
+                return;
+
+            final Bitmap bitmap = loadThumbnail(this);
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    deliver(Request.this, bitmap);
+                }
+            });
+        }
+
+        @Override
+        public int compareTo(Request another) {
+            return sequence > another.sequence ? -1 : (sequence == another.sequence ? 0 : 1);
+        }
+    }
+
+    private final Context mContext;
+    private final Resources mResources;
+    private final int mSize;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final LruCache<String, Bitmap> mMemoryCache;
+    private final HashMap<String, Request> mPending = new HashMap<String, Request>();
+    private final ThreadPoolExecutor mExecutor;
+    private DiskCache mDiskCache;
+    private long mSequence;
+
+    /**
+     * @param context The context.
+     * @return The ThumbnailLoader shared by all lists in this process.
+     */
+    public static synchronized ThumbnailLoader getInstance(Context context) {
+        if (sInstance == null)
+            sInstance = new ThumbnailLoader(context.getApplicationContext());
+        return sInstance;
+    }
+
+    private ThumbnailLoader(Context context) {
+        mContext = context;
+        mResources = context.getResources();
+        // Thumbnails replace the file icon, so make them the same size
+        mSize = mResources.getDrawable(R.drawable.ic_file).getIntrinsicWidth();
+
+        final int memoryCacheBytes = (int) Math.min(Runtime.getRuntime().maxMemory() / 8,
+                Integer.MAX_VALUE);
+        mMemoryCache = new LruCache<String, Bitmap>(memoryCacheBytes) {
+            @Override
+            protected int sizeOf(String key, Bitmap bitmap) {
+                return bitmap.getRowBytes() * bitmap.getHeight();
+            }
+        };
+
+        mExecutor = new ThreadPoolExecutor(THREAD_COUNT, THREAD_COUNT, 0, TimeUnit.SECONDS,
+                new PriorityBlockingQueue<Runnable>(), new ThreadFactory() {
+                    @Override
+                    public Thread newThread(final Runnable r) {
+                        return new Thread(new Runnable() {
+                            @Override
+                            public void run() {
+                                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                                r.run();
+                            }
+                        }, TAG);
+                    }
+                });
+    }
+
+    /**
+     * @param entry The file to check.
+     * @return Whether a thumbnail can be loaded for entry.
+     */
+    public static boolean canLoad(FileEntry entry) {
+        final String mimeType = entry.getMimeType();
+        return mimeType != null
+                && (mimeType.startsWith("image/") || mimeType.startsWith("video/"));
+    }
+
+    /**
+     * Show the thumbnail of a file as the left drawable of a row, once it is
+     * loaded. Any request the row was still waiting for is cancelled.
+     *
+     * @param view The row to show the thumbnail in.
+     * @param entry The file to show, for which {@link #canLoad(FileEntry)} is
+     *            true.
+     */
+    public void bind(TextView view, FileEntry entry) {
+        final String key = entry.getPath() + ':' + entry.lastModified() + ':' + entry.length()
+                + ':' + mSize;
+
+        final Object tag = view.getTag();
+        if (tag instanceof Request && ((Request) tag).key.equals(key))
+            return;
+        cancel(view);
+
+        final Bitmap cached = mMemoryCache.get(key);
+        if (cached != null) {
+            setThumbnail(view, cached);
+            return;
+        }
+
+        Request request = mPending.get(key);
+        if (request == null) {
+            request = new Request(key, entry, mSequence++);
+            mPending.put(key, request);
+            mExecutor.execute(request);
+        }
+        request.targets.add(view);
+        view.setTag(request);
+    }
+
+    /**
+     * Stop waiting for a thumbnail for a row, because it was recycled or
+     * bound to a file without one. The load itself is cancelled if no other
+     * row waits for it.
+     *
+     * @param view The row.
+     */
+    public void cancel(View view) {
+        final Object tag = view.getTag();
+        if (!(tag instanceof Request))
+            return;
+
+        final Request request = (Request) tag;
+        view.setTag(null);
+        request.targets.remove(view);
+        if (request.targets.isEmpty()) {
+            request.cancelled = true;
+            mExecutor.remove(request);
+            mPending.remove(request.key);
+        }
+    }
+
+    /**
+     * Drop all thumbnails held in memory.
+     */
+    public void trimMemory() {
+        mMemoryCache.evictAll();
+    }
+
+    private void deliver(Request request, Bitmap bitmap) {
+        if (mPending.get(request.key) == request)
+            mPending.remove(request.key);
+
+        if (bitmap == null)
+            return;
+
+        mMemoryCache.put(request.key, bitmap);
+        for (TextView view : request.targets) {
+            if (view.getTag() == request) {
+                view.setTag(null);
+                setThumbnail(view, bitmap);
+            }
+        }
+        request.targets.clear();
+    }
+
+    private void setThumbnail(TextView view, Bitmap bitmap) {
+        final BitmapDrawable drawable = new BitmapDrawable(mResources, bitmap);
+        drawable.setBounds(0, 0, mSize, mSize);
+        view.setCompoundDrawables(drawable, null, null, null);
+    }
+
+    /**
+     * Load a thumbnail from the disk cache, or decode it from the file and
+     * add it to the disk cache. Runs on a worker thread.
+     */
+    private Bitmap loadThumbnail(Request request) {
+        final DiskCache diskCache = getDiskCache();
+        final File cached = diskCache.get(request.key);
+        if (cached != null) {
+            final Bitmap bitmap = BitmapFactory.decodeFile(cached.getPath());
+            if (bitmap != null)
+                return bitmap;
+        }
+
+        if (request.cancelled)
+            return null;
+
+        final String mimeType = request.entry.getMimeType();
+        Bitmap source = null;
+        if (mimeType.startsWith("image/"))
+            source = decodeImage(request.entry.getPath());
+        else if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.FROYO)
+            source = ThumbnailUtils.createVideoThumbnail(request.entry.getPath(),
+                    MediaStore.Video.Thumbnails.MINI_KIND);
+        if (source == null)
+            return null;
+
+        final Bitmap bitmap = cropToSquare(source);
+
+        FileOutputStream out = null;
+        try {
+            final File tempFile = diskCache.newTempFile();
+            out = new FileOutputStream(tempFile);
+            bitmap.compress(Bitmap.CompressFormat.JPEG, JPEG_QUALITY, out);
+            out.close();
+            out = null;
+            diskCache.put(request.key, tempFile);
+        } catch (IOException e) {
+            Log.w(TAG, "Error caching thumbnail", e);
+        } finally {
+            if (out != null)
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    Log.w(TAG, "Error closing thumbnail", e);
+                }
+        }
+        return bitmap;
+    }
+
+    private synchronized DiskCache getDiskCache() {
+        // Opening the cache lists its directory, so do it off the main thread
+        if (mDiskCache == null)
+            mDiskCache = new DiskCache(new File(mContext.getCacheDir(), DISK_CACHE_DIR),
+                    DISK_CACHE_BYTES);
+        return mDiskCache;
+    }
+
+    /**
+     * Decode an image subsampled to no less than the thumbnail size.
+     */
+    private Bitmap decodeImage(String path) {
+        final BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeFile(path, options);
+        if (options.outWidth <= 0 || options.outHeight <= 0)
+            return null;
+
+        options.inSampleSize = 1;
+        while (options.outWidth / (options.inSampleSize * 2) >= mSize
+                && options.outHeight / (options.inSampleSize * 2) >= mSize) {
+            options.inSampleSize *= 2;
+        }
+        options.inJustDecodeBounds = false;
+        return BitmapFactory.decodeFile(path, options);
+    }
+
+    /**
+     * Crop the center square of a bitmap and scale it to the thumbnail size.
+     */
+    private Bitmap cropToSquare(Bitmap source) {
+        final int width = source.getWidth();
+        final int height = source.getHeight();
+        final int side = Math.min(width, height);
+        final Bitmap square = Bitmap.createBitmap(source, (width - side) / 2,
+                (height - side) / 2, side, side);
+        final Bitmap scaled = Bitmap.createScaledBitmap(square, mSize, mSize, true);
+        if (square != source && square != scaled)
+            square.recycle();
+        if (source != scaled)
+            source.recycle();
+        return scaled;
+    }
+}
@@ -0,0 +1,273 @@
+/*
+ * Copyright (C) 2013 Paul Burke
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ipaulpro.afilechooser.utils;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+/**
+ * Expands a selected directory into a manifest of the files it contains,
+ * searched with a {@link FileSearch} in the background. Files are written to
+ * the manifest as each directory is read, so memory use doesn't grow with
+ * the size of the tree, and the expansion stops once it reaches a number of
+ * files or bytes. Files are found in parallel, so which files fit in the
+ * budget of a larger tree is not defined.<br>
+ * <br>
+ * The manifest is a UTF-8 text file with one line per file: its size in
+ * bytes, a tab, and its absolute path. Read it with
+ * {@link #readManifest(File)}.
+ *
+ * @version 2013-12-11
+ * @author paulburke (ipaulpro)
+ */
+public class DirectoryExpander {
+
+    /**
+     * Interface to receive the progress and result of an expansion. Methods
+     * are called on worker threads, and none are called once the expansion
+     * was cancelled.
+     */
+    public interface Callback {
+        /**
+         * Called as files are added to the manifest.
+         *
+         * @param expander The expansion.
+         * @param fileCount The number of files added so far.
+         * @param byteCount The total size of those files.
+         */
+        public void onProgress(DirectoryExpander expander, int fileCount, long byteCount);
+
+        /**
+         * Called once the manifest is complete.
+         *
+         * @param expander The expansion.
+         * @param manifest The manifest file.
+         * @param fileCount The number of files in the manifest.
+         * @param byteCount The total size of those files.
+         * @param truncated Whether files were left out to stay within the
+         *            budget.
+         */
+        public void onExpanded(DirectoryExpander expander, File manifest, int fileCount,
+                long byteCount, boolean truncated);
+
+        /**
+         * Called if the manifest could not be written.
+         *
+         * @param expander The expansion.
+         * @param e The error.
+         */
+        public void onError(DirectoryExpander expander, IOException e);
+    }
+
+    private final File mDirectory;
+    private final FileSearch.Criteria mCriteria;
+    private final int mMaxFiles;
+    private final long mMaxBytes;
+    private final File mManifest;
+    private final Callback mCallback;
+    private final Executor mExecutor;
+
+    private FileSearch mSearch;
+    private Writer mWriter;
+    private int mFileCount;
+    private long mByteCount;
+    private boolean mFinished;
+    private volatile boolean mCancelled;
+
+    /**
+     * @param directory The directory to expand.
+     * @param criteria What the files must match, or null for all files.
+     *            Directories are never added.
+     * @param maxFiles The maximum number of files in the manifest.
+     * @param maxBytes The maximum total size of the files in the manifest,
+     *            or -1 for no limit.
+     * @param manifest The file to write the manifest to.
+     * @param callback The callback to report progress and the manifest to.
+     * @param executor The executor to search on, such as
+     *            {@link FileSearch#getDefaultExecutor()}.
+     */
+    public DirectoryExpander(File directory, FileSearch.Criteria criteria, int maxFiles,
+            long maxBytes, File manifest, Callback callback, Executor executor) {
+        mDirectory = directory;
+        mCriteria = (criteria != null ? criteria : new FileSearch.Criteria())
+                .setIncludeDirectories(false).setReadAttributes(true);
+        mMaxFiles = maxFiles;
+        mMaxBytes = maxBytes;
+        mManifest = manifest;
+        mCallback = callback;
+        mExecutor = executor;
+    }
+
+    /**
+     * Start the expansion.
+     *
+     * @return This expansion.
+     */
+    public synchronized DirectoryExpander start() {
+        try {
+            mWriter = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(mManifest),
+                    "UTF-8"));
+        } catch (IOException e) {
+            mFinished = true;
+            mCallback.onError(this, e);
+            return this;
+        }
+
+        mSearch = new FileSearch(mDirectory, mCriteria, Integer.MAX_VALUE,
+                new FileSearch.Callback() {
+                    @Override
+                    public void onFilesFound(FileSearch search, List<FileEntry> files) {
+                        add(files);
+                    }
+
+                    @Override
+                    public void onSearchFinished(FileSearch search) {
+                        finish(false);
+                    }
+                }, mExecutor).start();
+        return this;
+    }
+
+    /**
+     * Stop the expansion and delete the partial manifest. No more callbacks
+     * are called.
+     */
+    public void cancel() {
+        mCancelled = true;
+        synchronized (this) {
+            if (mSearch != null)
+                mSearch.cancel();
+            if (!mFinished) {
+                mFinished = true;
+                close();
+                mManifest.delete();
+            }
+        }
+    }
+
+    /**
+     * @return Whether the expansion was cancelled.
+     */
+    public boolean isCancelled() {
+        return mCancelled;
+    }
+
+    /**
+     * @return The directory being expanded.
+     */
+    public File getDirectory() {
+        return mDirectory;
+    }
+
+    /**
+     * Read the files listed in a manifest.
+     *
+     * @param manifest The manifest written by an expansion.
+     * @return The files, in the order they were found.
+     * @throws IOException If the manifest could not be read.
+     */
+    public static List<File> readManifest(File manifest) throws IOException {
+        final List<File> files = new ArrayList<File>();
+        final BufferedReader reader = new BufferedReader(new InputStreamReader(
+                new FileInputStream(manifest), "UTF-8"));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                final int tab = line.indexOf('\t');
+                if (tab >= 0)
+                    files.add(new File(line.substring(tab + 1)));
+            }
+        } finally {
+            reader.close();
+        }
+        return files;
+    }
+
+    private synchronized void add(List<FileEntry> files) {
+        if (mFinished)
+            return;
+
+        boolean full = false;
+        try {
+            for (FileEntry file : files) {
+                if (mFileCount >= mMaxFiles
+                        || (mMaxBytes >= 0 && mByteCount + file.length() > mMaxBytes)) {
+                    full = true;
+                    break;
+                }
+                mWriter.write(Long.toString(file.length()));
+                mWriter.write('\t');
+                mWriter.write(file.getPath());
+                mWriter.write('\n');
+                mFileCount++;
+                mByteCount += file.length();
+            }
+        } catch (IOException e) {
+            fail(e);
+            return;
+        }
+
+        mCallback.onProgress(this, mFileCount, mByteCount);
+        if (full) {
+            // The search won't finish once cancelled, so finish here
+            mSearch.cancel();
+            finish(true);
+        }
+    }
+
+    private synchronized void finish(boolean truncated) {
+        if (mFinished)
+            return;
+        mFinished = true;
+        try {
+            mWriter.close();
+        } catch (IOException e) {
+            mManifest.delete();
+            mCallback.onError(this, e);
+            return;
+        }
+        mCallback.onExpanded(this, mManifest, mFileCount, mByteCount, truncated);
+    }
+
+    private void fail(IOException e) {
+        mSearch.cancel();
+        mFinished = true;
+        close();
+        mManifest.delete();
+        mCallback.onError(this, e);
+    }
+
+    private void close() {
+        if (mWriter == null)
+            return;
+        try {
+            mWriter.close();
+        } catch (IOException e) {
+            // Ignore
+        }
+    }
+}
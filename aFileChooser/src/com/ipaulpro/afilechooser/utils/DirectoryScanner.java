@@ -0,0 +1,190 @@
+/*
+ * Copyright (C) 2013 Paul Burke
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ipaulpro.afilechooser.utils;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Reads a directory once and sorts each entry into directories or files with a
+ * single attribute lookup, optionally reading its size and modification time
+ * in the same pass. Hidden entries are rejected by name, before any lookup is
+ * made.<br>
+ * <br>
+ * This class only depends on java.io, so it can be run and measured on a
+ * desktop JVM.
+ *
+ * @version 2013-12-11
+ * @author paulburke (ipaulpro)
+ */
+public class DirectoryScanner {
+    private DirectoryScanner() {} //private constructor to enforce Singleton pattern
+
+    /** Same as {@link FileUtils#HIDDEN_PREFIX}, kept here to avoid Android deps. */
+    private static final String HIDDEN_PREFIX = ".";
+
+    /** Number of attribute lookups made by all scans. */
+    private static final AtomicLong sStatCount = new AtomicLong();
+
+    /**
+     * Interface to receive entries while a scan is still running.
+     */
+    public interface BatchListener {
+        /**
+         * Called on the scanning thread with entries that were just read.
+         *
+         * @param batch The directories and files read since the last batch,
+         *            in directory order. Must not be modified.
+         */
+        public void onBatch(List<FileEntry> batch);
+    }
+
+    /**
+     * The entries of a scanned directory, in directory order.
+     */
+    public static class Result {
+        public final List<FileEntry> directories;
+        public final List<FileEntry> files;
+
+        Result(int capacity) {
+            directories = new ArrayList<FileEntry>(capacity);
+            files = new ArrayList<FileEntry>(capacity);
+        }
+    }
+
+    /**
+     * Scan a directory, skipping hidden entries and reading only whether each
+     * entry is a directory.
+     *
+     * @param dir The directory to scan.
+     * @return The directories and files in dir. Both lists are empty if dir
+     *         could not be read.
+     */
+    public static Result scan(File dir) {
+        return scan(dir, false, false);
+    }
+
+    /**
+     * Scan a directory. The directory is read once, and each entry that is
+     * kept is looked up once: one lookup per entry to tell directories from
+     * files, plus the size and modification time if readAttributes is set.
+     *
+     * @param dir The directory to scan.
+     * @param showHidden Whether to include entries starting with ".".
+     * @param readAttributes Whether to read the size and modification time.
+     * @return The directories and files in dir. Both lists are empty if dir
+     *         could not be read.
+     */
+    public static Result scan(File dir, boolean showHidden, boolean readAttributes) {
+        return scan(dir, showHidden, readAttributes, 0, 0, null);
+    }
+
+    /**
+     * Scan a directory, reporting entries to a listener in batches while the
+     * scan runs. A batch is reported once it holds batchSize entries. The first
+     * batch is also reported early, as soon as firstBatchMillis have passed
+     * since the scan started, so the first screen can be shown quickly.<br>
+     * <br>
+     * Entries left over after the last full batch are only part of the
+     * returned Result; a directory that is scanned faster than
+     * firstBatchMillis reports no batches at all.
+     *
+     * @param dir The directory to scan.
+     * @param showHidden Whether to include entries starting with ".".
+     * @param readAttributes Whether to read the size and modification time.
+     * @param batchSize The number of entries in each batch.
+     * @param firstBatchMillis The maximum time before the first batch is
+     *            reported, in milliseconds.
+     * @param listener The listener to report batches to, or null for none.
+     * @return All directories and files in dir.
+     */
+    public static Result scan(File dir, boolean showHidden, boolean readAttributes,
+            int batchSize, long firstBatchMillis, BatchListener listener) {
+        final String[] names = dir.list();
+        if (names == null)
+            return new Result(0);
+
+        final long firstBatchDeadline = System.nanoTime() + firstBatchMillis * 1000000L;
+        boolean firstBatch = true;
+        List<FileEntry> batch = listener != null ? new ArrayList<FileEntry>(batchSize) : null;
+
+        final Result result = new Result(names.length);
+        for (String name : names) {
+            if (!showHidden && name.startsWith(HIDDEN_PREFIX))
+                continue;
+
+            final FileEntry entry = readEntry(new File(dir, name), readAttributes);
+            if (entry.isDirectory())
+                result.directories.add(entry);
+            else
+                result.files.add(entry);
+
+            if (batch != null) {
+                batch.add(entry);
+                if (batch.size() >= batchSize
+                        || (firstBatch && System.nanoTime() >= firstBatchDeadline)) {
+                    listener.onBatch(batch);
+                    batch = new ArrayList<FileEntry>(batchSize);
+                    firstBatch = false;
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Read the attributes of a single file, counting each lookup.
+     *
+     * @param file The file to read.
+     * @param readAttributes Whether to read the size and modification time, or
+     *            only whether file is a directory.
+     * @return The attributes of file.
+     */
+    public static FileEntry readEntry(File file, boolean readAttributes) {
+        sStatCount.incrementAndGet();
+        final boolean directory = file.isDirectory();
+        long length = 0;
+        long lastModified = 0;
+        if (readAttributes) {
+            // The size of a directory is meaningless, so skip that lookup
+            if (!directory) {
+                sStatCount.incrementAndGet();
+                length = file.length();
+            }
+            sStatCount.incrementAndGet();
+            lastModified = file.lastModified();
+        }
+        return new FileEntry(file, directory, length, lastModified);
+    }
+
+    /**
+     * @return The number of attribute lookups made by all scans since the last
+     *         call to {@link #resetStatCount()}.
+     */
+    public static long getStatCount() {
+        return sStatCount.get();
+    }
+
+    /**
+     * Reset the attribute lookup counter.
+     */
+    public static void resetStatCount() {
+        sStatCount.set(0);
+    }
+}
@@ -0,0 +1,310 @@
+/*
+ * Copyright (C) 2013 Paul Burke
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ipaulpro.afilechooser.utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Computes the total size of directory trees in the background, one task per
+ * directory spread over a pool of threads. No task waits for another: each
+ * directory adds its total to its parent's as it completes, so the pool never
+ * deadlocks on its own work.<br>
+ * <br>
+ * Each directory's file sizes and subdirectories are remembered with its
+ * modification time. Computing the same tree again only lists directories
+ * that changed, so it costs one lookup per directory, plus resolving its
+ * canonical path to stop at symlink loops. Sizes of files changed in place,
+ * without their directory changing, are picked up once the directory is next
+ * listed.<br>
+ * <br>
+ * This class only depends on java.io, so it can be run and measured on a
+ * desktop JVM.
+ *
+ * @version 2013-12-11
+ * @author paulburke (ipaulpro)
+ */
+public class DirectorySizer {
+
+    /** Maximum number of directories remembered. */
+    public static final int MAX_DIRECTORIES = 50000;
+
+    /**
+     * Interface to receive the size of a directory tree.
+     */
+    public interface Callback {
+        /**
+         * Called on a worker thread once a tree has been measured. Not called
+         * if the request was cancelled.
+         *
+         * @param dir The root of the tree.
+         * @param bytes The total size of the files in the tree.
+         */
+        public void onSizeComputed(File dir, long bytes);
+    }
+
+    /**
+     * A running computation, shared by all callers asking for the same tree.
+     */
+    public class Request {
+        private final File mDir;
+        private final List<Callback> mCallbacks = new ArrayList<Callback>(1);
+        /** Canonical paths of the directories seen, to stop at symlink loops. */
+        private final ConcurrentHashMap<String, Boolean> mVisited =
+                new ConcurrentHashMap<String, Boolean>();
+        private volatile boolean mCancelled;
+
+        Request(File dir) {
+            mDir = dir;
+        }
+
+        /**
+         * Stop the computation. Directories already queued are skipped, and
+         * no callback is called.
+         */
+        public void cancel() {
+            mCancelled = true;
+            synchronized (mRequests) {
+                if (mRequests.get(mDir.getAbsolutePath()) == this)
+                    mRequests.remove(mDir.getAbsolutePath());
+            }
+        }
+
+        /**
+         * @return Whether the computation was cancelled.
+         */
+        public boolean isCancelled() {
+            return mCancelled;
+        }
+
+        void done(long bytes) {
+            final List<Callback> callbacks;
+            synchronized (mRequests) {
+                if (mRequests.get(mDir.getAbsolutePath()) == this)
+                    mRequests.remove(mDir.getAbsolutePath());
+                callbacks = new ArrayList<Callback>(mCallbacks);
+            }
+            if (mCancelled)
+                return;
+            for (Callback callback : callbacks)
+                callback.onSizeComputed(mDir, bytes);
+        }
+    }
+
+    /**
+     * What is remembered of a directory.
+     */
+    private static class Node {
+        final long lastModified;
+        final long fileBytes;
+        final String[] subdirectories;
+        /** Total size of the tree, or -1 until it has been computed. */
+        volatile long total = -1;
+
+        Node(long lastModified, long fileBytes, String[] subdirectories) {
+            this.lastModified = lastModified;
+            this.fileBytes = fileBytes;
+            this.subdirectories = subdirectories;
+        }
+    }
+
+    /**
+     * Measures one directory, then its subdirectories in their own tasks.
+     */
+    private class Task implements Runnable {
+        final Request request;
+        final File dir;
+        final Task parent;
+        final AtomicLong total = new AtomicLong();
+        final AtomicInteger pending = new AtomicInteger();
+        Node node;
+
+        Task(Request request, File dir, Task parent) {
+            this.request = request;
+            this.dir = dir;
+            this.parent = parent;
+        }
+
+        @Override
+        public void run() {
+            if (request.mCancelled || !visit()) {
+                complete();
+                return;
+            }
+
+            node = readNode(dir);
+            total.set(node.fileBytes);
+            final String[] subdirectories = node.subdirectories;
+            // Count all children before starting any, so none completes early
+            pending.set(subdirectories.length + 1);
+            for (String name : subdirectories)
+                mExecutor.execute(new Task(request, new File(dir, name), this));
+            childDone(0);
+        }
+
+        /**
+         * @return Whether the directory was not seen before in this request.
+         */
+        private boolean visit() {
+            String canonical;
+            try {
+                canonical = dir.getCanonicalPath();
+            } catch (IOException e) {
+                canonical = dir.getAbsolutePath();
+            }
+            return request.mVisited.putIfAbsent(canonical, Boolean.TRUE) == null;
+        }
+
+        void childDone(long bytes) {
+            total.addAndGet(bytes);
+            if (pending.decrementAndGet() == 0)
+                complete();
+        }
+
+        private void complete() {
+            final long bytes = total.get();
+            // A cancelled tree is missing parts, so don't remember its total
+            if (node != null && !request.mCancelled)
+                node.total = bytes;
+            if (parent != null)
+                parent.childDone(bytes);
+            else
+                request.done(bytes);
+        }
+    }
+
+    private final ExecutorService mExecutor;
+    private final HashMap<String, Request> mRequests = new HashMap<String, Request>();
+    private final LinkedHashMap<String, Node> mNodes = new LinkedHashMap<String, Node>(16,
+            0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Node> eldest) {
+            return size() > MAX_DIRECTORIES;
+        }
+    };
+
+    /**
+     * @param threadCount The number of directories to read at once.
+     */
+    public DirectorySizer(int threadCount) {
+        mExecutor = new ThreadPoolExecutor(threadCount, threadCount, 0, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        final Thread thread = new Thread(r, "DirectorySizer");
+                        thread.setDaemon(true);
+                        thread.setPriority(Thread.MIN_PRIORITY);
+                        return thread;
+                    }
+                });
+    }
+
+    /**
+     * Start computing the size of a directory tree, unless it is already
+     * being computed.
+     *
+     * @param dir The root of the tree.
+     * @param callback The callback to call with the size, or null.
+     * @return The computation, which can be cancelled.
+     */
+    public Request computeSize(File dir, Callback callback) {
+        final String path = dir.getAbsolutePath();
+        Request request;
+        boolean start = false;
+        synchronized (mRequests) {
+            request = mRequests.get(path);
+            if (request == null) {
+                request = new Request(dir);
+                mRequests.put(path, request);
+                start = true;
+            }
+            if (callback != null)
+                request.mCallbacks.add(callback);
+        }
+        if (start)
+            mExecutor.execute(new Task(request, dir, null));
+        return request;
+    }
+
+    /**
+     * Get the last computed size of a directory tree without touching the
+     * disk.
+     *
+     * @param dir The root of the tree.
+     * @param lastModified The current modification time of dir.
+     * @return The size of the tree, or -1 if it wasn't computed since dir
+     *         last changed. Changes deeper in the tree are only seen by
+     *         {@link #computeSize(File, Callback)}.
+     */
+    public long getCachedSize(File dir, long lastModified) {
+        final Node node;
+        synchronized (mNodes) {
+            node = mNodes.get(dir.getAbsolutePath());
+        }
+        return node != null && node.lastModified == lastModified ? node.total : -1;
+    }
+
+    /**
+     * Forget all remembered directories.
+     */
+    public void clear() {
+        synchronized (mNodes) {
+            mNodes.clear();
+        }
+    }
+
+    /**
+     * Read a directory, or reuse what is remembered of it if it has not
+     * changed. Hidden files count towards the size.
+     */
+    private Node readNode(File dir) {
+        final String path = dir.getAbsolutePath();
+        final long lastModified = dir.lastModified();
+        synchronized (mNodes) {
+            final Node node = mNodes.get(path);
+            if (node != null && node.lastModified == lastModified)
+                return node;
+        }
+
+        final DirectoryScanner.Result scan = DirectoryScanner.scan(dir, true, false);
+        long fileBytes = 0;
+        for (FileEntry entry : scan.files)
+            fileBytes += entry.getFile().length();
+        final String[] subdirectories = new String[scan.directories.size()];
+        for (int i = 0; i < subdirectories.length; i++)
+            subdirectories[i] = scan.directories.get(i).getName();
+
+        final Node node = new Node(lastModified, fileBytes, subdirectories);
+        synchronized (mNodes) {
+            mNodes.put(path, node);
+        }
+        return node;
+    }
+}
@@ -0,0 +1,330 @@
+/*
+ * Copyright (C) 2013 Paul Burke
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ipaulpro.afilechooser.utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A directory of files, bounded by their total size, that drops the least
+ * recently used file when it grows too large. The usage order survives
+ * restarts, since each file's modification time is updated when it is used.<br>
+ * <br>
+ * Values are written to a temporary file from {@link #newTempFile()} and then
+ * moved into the cache with {@link #put(String, File)}, so a reader never sees
+ * a partially written file. A file that must outlive later puts can be
+ * pinned, and is not dropped until it is released.
+ *
+ * @version 2013-12-11
+ * @author paulburke (ipaulpro)
+ */
+public class DiskCache {
+
+    private static final String TEMP_PREFIX = "tmp-";
+
+    private final File mDirectory;
+    private final long mMaxBytes;
+
+    /** File names to sizes, in access order. */
+    private final LinkedHashMap<String, Long> mEntries = new LinkedHashMap<String, Long>(16,
+            0.75f, true);
+    /** File names to the number of times they are pinned. */
+    private final HashMap<String, Integer> mPins = new HashMap<String, Integer>();
+    private long mSize;
+    private int mHitCount;
+    private int mMissCount;
+    private int mEvictionCount;
+
+    /**
+     * Open or create a cache in the given directory. Leftover temporary files
+     * are deleted, and the cache is trimmed to maxBytes.
+     *
+     * @param directory The directory to keep the files in. Nothing else should
+     *            be stored there.
+     * @param maxBytes The maximum total size of the files.
+     */
+    public DiskCache(File directory, long maxBytes) {
+        mDirectory = directory;
+        mMaxBytes = maxBytes;
+
+        directory.mkdirs();
+        final File[] files = directory.listFiles();
+        if (files != null) {
+            // Oldest first, so the most recently used files end up last
+            Arrays.sort(files, new Comparator<File>() {
+                @Override
+                public int compare(File f1, File f2) {
+                    final long t1 = f1.lastModified();
+                    final long t2 = f2.lastModified();
+                    return t1 < t2 ? -1 : (t1 == t2 ? 0 : 1);
+                }
+            });
+            for (File file : files) {
+                if (file.getName().startsWith(TEMP_PREFIX)) {
+                    file.delete();
+                } else {
+                    final long length = file.length();
+                    mEntries.put(file.getName(), length);
+                    mSize += length;
+                }
+            }
+        }
+        trimToSize(mMaxBytes);
+    }
+
+    /**
+     * Get the cached file for a key, marking it as recently used.
+     *
+     * @param key The key of the value.
+     * @return The file holding the value, or null if it isn't cached.
+     */
+    public File get(String key) {
+        return get(key, "");
+    }
+
+    /**
+     * Get the cached file for a key stored with a suffix, marking it as
+     * recently used.
+     *
+     * @param key The key of the value.
+     * @param suffix The suffix the file was put with, such as ".jpg".
+     * @return The file holding the value, or null if it isn't cached.
+     */
+    public File get(String key, String suffix) {
+        return get(key, suffix, false);
+    }
+
+    /**
+     * Get the cached file for a key stored with a suffix, marking it as
+     * recently used.
+     *
+     * @param key The key of the value.
+     * @param suffix The suffix the file was put with, such as ".jpg".
+     * @param pin Whether to keep the file until {@link #release(File)} is
+     *            called for it.
+     * @return The file holding the value, or null if it isn't cached.
+     */
+    public synchronized File get(String key, String suffix, boolean pin) {
+        final String name = toFileName(key) + suffix;
+        if (mEntries.get(name) == null) {
+            mMissCount++;
+            return null;
+        }
+
+        final File file = new File(mDirectory, name);
+        if (!file.exists()) {
+            // Deleted behind our back
+            mSize -= mEntries.remove(name);
+            mMissCount++;
+            return null;
+        }
+
+        mHitCount++;
+        file.setLastModified(System.currentTimeMillis());
+        if (pin)
+            pin(name);
+        return file;
+    }
+
+    /**
+     * @return A new, empty file in the cache directory to write a value to
+     *         before calling {@link #put(String, File)}.
+     * @throws IOException If the file could not be created.
+     */
+    public File newTempFile() throws IOException {
+        mDirectory.mkdirs();
+        return File.createTempFile(TEMP_PREFIX, null, mDirectory);
+    }
+
+    /**
+     * Move a file written with {@link #newTempFile()} into the cache,
+     * replacing any value for the same key, then drop the least recently used
+     * files until the cache fits.
+     *
+     * @param key The key of the value.
+     * @param tempFile The file holding the value.
+     * @return The cached file, or null if it could not be moved.
+     */
+    public File put(String key, File tempFile) {
+        return put(key, "", tempFile);
+    }
+
+    /**
+     * Move a file written with {@link #newTempFile()} into the cache under a
+     * name ending with suffix, so that its type can still be told from its
+     * name.
+     *
+     * @param key The key of the value.
+     * @param suffix The suffix of the file name, such as ".jpg".
+     * @param tempFile The file holding the value.
+     * @return The cached file, or null if it could not be moved.
+     */
+    public File put(String key, String suffix, File tempFile) {
+        return put(key, suffix, tempFile, false);
+    }
+
+    /**
+     * Move a file written with {@link #newTempFile()} into the cache under a
+     * name ending with suffix.
+     *
+     * @param key The key of the value.
+     * @param suffix The suffix of the file name, such as ".jpg".
+     * @param tempFile The file holding the value.
+     * @param pin Whether to keep the file until {@link #release(File)} is
+     *            called for it, even if that leaves the cache too large.
+     * @return The cached file, or null if it could not be moved.
+     */
+    public synchronized File put(String key, String suffix, File tempFile, boolean pin) {
+        final String name = toFileName(key) + suffix;
+        final File file = new File(mDirectory, name);
+        if (!tempFile.renameTo(file)) {
+            tempFile.delete();
+            return null;
+        }
+
+        final long length = file.length();
+        final Long previous = mEntries.put(name, length);
+        if (previous != null)
+            mSize -= previous;
+        mSize += length;
+        if (pin)
+            pin(name);
+
+        trimToSize(mMaxBytes);
+        return mEntries.containsKey(name) ? file : null;
+    }
+
+    /**
+     * Release a file pinned by get() or put(), so it can be dropped again.
+     *
+     * @param file The file returned by get() or put().
+     */
+    public synchronized void release(File file) {
+        final String name = file.getName();
+        final Integer pins = mPins.remove(name);
+        if (pins == null)
+            return;
+        if (pins > 1)
+            mPins.put(name, pins - 1);
+        else
+            trimToSize(mMaxBytes);
+    }
+
+    /**
+     * Drop the value for a key, if any.
+     *
+     * @param key The key of the value.
+     */
+    public synchronized void remove(String key) {
+        final String name = toFileName(key);
+        final Long length = mEntries.remove(name);
+        if (length != null) {
+            mSize -= length;
+            new File(mDirectory, name).delete();
+        }
+    }
+
+    /**
+     * Drop all values, except those that are pinned.
+     */
+    public synchronized void clear() {
+        trimToSize(-1);
+    }
+
+    /**
+     * @return The total size of the cached files, in bytes.
+     */
+    public synchronized long size() {
+        return mSize;
+    }
+
+    /**
+     * @return The maximum total size of the cached files, in bytes.
+     */
+    public long maxSize() {
+        return mMaxBytes;
+    }
+
+    /**
+     * @return The number of times get() found a cached file.
+     */
+    public synchronized int hitCount() {
+        return mHitCount;
+    }
+
+    /**
+     * @return The number of times get() found no cached file.
+     */
+    public synchronized int missCount() {
+        return mMissCount;
+    }
+
+    /**
+     * @return The number of files dropped to stay within the size limit.
+     */
+    public synchronized int evictionCount() {
+        return mEvictionCount;
+    }
+
+    private void pin(String name) {
+        final Integer pins = mPins.get(name);
+        mPins.put(name, pins != null ? pins + 1 : 1);
+    }
+
+    private void trimToSize(long maxBytes) {
+        final Iterator<Map.Entry<String, Long>> iterator = mEntries.entrySet().iterator();
+        while (mSize > maxBytes && iterator.hasNext()) {
+            final Map.Entry<String, Long> eldest = iterator.next();
+            // Still in use by whoever pinned it
+            if (mPins.containsKey(eldest.getKey()))
+                continue;
+            new File(mDirectory, eldest.getKey()).delete();
+            mSize -= eldest.getValue();
+            iterator.remove();
+            mEvictionCount++;
+        }
+    }
+
+    /**
+     * Hash a key into a name that is safe to use as a file name.
+     */
+    private static String toFileName(String key) {
+        try {
+            final MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            final byte[] hash = digest.digest(key.getBytes("UTF-8"));
+            final StringBuilder name = new StringBuilder(hash.length * 2);
+            for (byte b : hash) {
+                name.append(Character.forDigit((b >> 4) & 0xf, 16));
+                name.append(Character.forDigit(b & 0xf, 16));
+            }
+            return name.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
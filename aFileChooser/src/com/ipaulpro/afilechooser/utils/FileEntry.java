@@ -0,0 +1,116 @@
+/*
+ * Copyright (C) 2013 Paul Burke
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ipaulpro.afilechooser.utils;
+
+import java.io.File;
+
+/**
+ * Immutable attributes of a file, read once from disk. Sorting and displaying
+ * FileEntries never touches the file system, so they can be used on the UI
+ * thread.
+ *
+ * @version 2013-12-11
+ * @author paulburke (ipaulpro)
+ */
+public class FileEntry {
+
+    private final File mFile;
+    private final String mName;
+    private final boolean mDirectory;
+    private final long mLength;
+    private final long mLastModified;
+    private final String mMimeType;
+
+    public FileEntry(File file, boolean directory, long length, long lastModified) {
+        this(file, directory, length, lastModified, null);
+    }
+
+    public FileEntry(File file, boolean directory, long length, long lastModified,
+            String mimeType) {
+        mFile = file;
+        mName = file.getName();
+        mDirectory = directory;
+        mLength = length;
+        mLastModified = lastModified;
+        mMimeType = mimeType;
+    }
+
+    /**
+     * @param mimeType The MIME type of the file.
+     * @return A copy of this entry with the given MIME type.
+     */
+    public FileEntry withMimeType(String mimeType) {
+        return new FileEntry(mFile, mDirectory, mLength, mLastModified, mimeType);
+    }
+
+    /**
+     * @return The File this entry was read from.
+     */
+    public File getFile() {
+        return mFile;
+    }
+
+    /**
+     * @return The name of the file, without its parent path.
+     */
+    public String getName() {
+        return mName;
+    }
+
+    /**
+     * @return The absolute path of the file.
+     */
+    public String getPath() {
+        return mFile.getAbsolutePath();
+    }
+
+    /**
+     * @return Whether the file is a directory.
+     */
+    public boolean isDirectory() {
+        return mDirectory;
+    }
+
+    /**
+     * @return The length of the file in bytes; 0 for directories or if
+     *         attributes were not read.
+     */
+    public long length() {
+        return mLength;
+    }
+
+    /**
+     * @return The modification time of the file in milliseconds since the
+     *         epoch; 0 if attributes were not read.
+     */
+    public long lastModified() {
+        return mLastModified;
+    }
+
+    /**
+     * @return The MIME type of the file; null for directories, or if it was
+     *         not resolved.
+     */
+    public String getMimeType() {
+        return mMimeType;
+    }
+
+    @Override
+    public String toString() {
+        return mFile.toString();
+    }
+}
@@ -0,0 +1,599 @@
+/*
+ * Copyright (C) 2013 Paul Burke
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ipaulpro.afilechooser.utils;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * An immutable index of the names of all files under a directory, for prefix
+ * and substring search. Names are packed into a single char array with int
+ * offsets rather than held as Strings, and a sorted array of entry numbers
+ * serves prefix searches by binary search.<br>
+ * <br>
+ * An index is refreshed by building a new one from the previous one: only
+ * directories whose modification time changed are listed again, so a refresh
+ * of an unchanged tree costs one lookup per directory. Indexes are saved to
+ * and mapped back from a file, so they survive restarts.<br>
+ * <br>
+ * This class only depends on java.io and java.nio, so it can be run and
+ * measured on a desktop JVM.
+ *
+ * @version 2013-12-11
+ * @author paulburke (ipaulpro)
+ */
+public class FileIndex {
+
+    private static final int MAGIC = 0x46494458;
+    private static final int VERSION = 2;
+
+    private final int mDirectoryCount;
+    private final char[] mDirectoryChars;
+    /** Start of each directory path in mDirectoryChars, plus the end. */
+    private final int[] mDirectoryOffsets;
+    private final long[] mDirectoryLastModified;
+    /** First entry of each directory, plus the entry count. */
+    private final int[] mDirectoryFirstEntry;
+
+    private final int mEntryCount;
+    private final char[] mNameChars;
+    /** Start of each entry name in mNameChars, plus the end. */
+    private final int[] mNameOffsets;
+    /** The directory each entry is in. */
+    private final int[] mEntryParent;
+    /** The directory each entry is, or -1 for files. */
+    private final int[] mEntryDirectory;
+    /** The modification time of each entry. */
+    private final long[] mEntryLastModified;
+    /** Entry numbers in order of their lower case names. */
+    private final int[] mSorted;
+
+    /** Directory paths to numbers, built when the index is refreshed. */
+    private HashMap<String, Integer> mDirectoryNumbers;
+
+    private FileIndex(int directoryCount, char[] directoryChars, int[] directoryOffsets,
+            long[] directoryLastModified, int[] directoryFirstEntry, int entryCount,
+            char[] nameChars, int[] nameOffsets, int[] entryParent, int[] entryDirectory,
+            long[] entryLastModified, int[] sorted) {
+        mDirectoryCount = directoryCount;
+        mDirectoryChars = directoryChars;
+        mDirectoryOffsets = directoryOffsets;
+        mDirectoryLastModified = directoryLastModified;
+        mDirectoryFirstEntry = directoryFirstEntry;
+        mEntryCount = entryCount;
+        mNameChars = nameChars;
+        mNameOffsets = nameOffsets;
+        mEntryParent = entryParent;
+        mEntryDirectory = entryDirectory;
+        mEntryLastModified = entryLastModified;
+        mSorted = sorted;
+    }
+
+    /**
+     * Index all files under a directory, skipping hidden entries.
+     *
+     * @param root The directory to index.
+     * @param previous An earlier index of the same directory, whose listings
+     *            are reused for directories that have not changed, or null.
+     * @return The new index.
+     */
+    public static FileIndex build(File root, FileIndex previous) {
+        final Builder builder = new Builder();
+        builder.addDirectory(root.getAbsolutePath());
+        // The directory list doubles as the queue of directories to read
+        for (int d = 0; d < builder.directories.size(); d++) {
+            final String path = builder.directories.get(d);
+            final File dir = new File(path);
+            final long lastModified = dir.lastModified();
+            builder.startDirectory(d, lastModified);
+
+            final int previousDirectory = previous != null ? previous.getDirectoryNumber(path)
+                    : -1;
+            if (previousDirectory >= 0
+                    && previous.mDirectoryLastModified[previousDirectory] == lastModified) {
+                // Unchanged since the previous index, so reuse its listing
+                final int end = previous.mDirectoryFirstEntry[previousDirectory + 1];
+                for (int e = previous.mDirectoryFirstEntry[previousDirectory]; e < end; e++) {
+                    final int start = previous.mNameOffsets[e];
+                    builder.addEntry(d, previous.mNameChars, start,
+                            previous.mNameOffsets[e + 1] - start,
+                            previous.mEntryDirectory[e] >= 0, previous.mEntryLastModified[e]);
+                }
+            } else {
+                final DirectoryScanner.Result scan = DirectoryScanner.scan(dir, false, true);
+                for (FileEntry entry : scan.directories) {
+                    final String name = entry.getName();
+                    builder.addEntry(d, name.toCharArray(), 0, name.length(), true,
+                            entry.lastModified());
+                }
+                for (FileEntry entry : scan.files) {
+                    final String name = entry.getName();
+                    builder.addEntry(d, name.toCharArray(), 0, name.length(), false,
+                            entry.lastModified());
+                }
+            }
+        }
+        return builder.build();
+    }
+
+    /**
+     * Read an index saved with {@link #save(File)}.
+     *
+     * @param file The file the index was saved to.
+     * @return The index, or null if the file is missing or not a valid index.
+     */
+    public static FileIndex load(File file) {
+        FileInputStream in = null;
+        try {
+            in = new FileInputStream(file);
+            final FileChannel channel = in.getChannel();
+            final MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0,
+                    channel.size());
+            if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION)
+                return null;
+
+            final int directoryCount = buffer.getInt();
+            final char[] directoryChars = readChars(buffer, buffer.getInt());
+            final int[] directoryOffsets = readInts(buffer, directoryCount + 1);
+            final long[] directoryLastModified = readLongs(buffer, directoryCount);
+            final int[] directoryFirstEntry = readInts(buffer, directoryCount + 1);
+
+            final int entryCount = buffer.getInt();
+            final char[] nameChars = readChars(buffer, buffer.getInt());
+            final int[] nameOffsets = readInts(buffer, entryCount + 1);
+            final int[] entryParent = readInts(buffer, entryCount);
+            final int[] entryDirectory = readInts(buffer, entryCount);
+            final long[] entryLastModified = readLongs(buffer, entryCount);
+            final int[] sorted = readInts(buffer, entryCount);
+            return new FileIndex(directoryCount, directoryChars, directoryOffsets,
+                    directoryLastModified, directoryFirstEntry, entryCount, nameChars,
+                    nameOffsets, entryParent, entryDirectory, entryLastModified, sorted);
+        } catch (IOException e) {
+            return null;
+        } catch (BufferUnderflowException e) {
+            return null;
+        } catch (IllegalArgumentException e) {
+            return null;
+        } finally {
+            if (in != null)
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    // Nothing left to read
+                }
+        }
+    }
+
+    /**
+     * Save the index, replacing file only once it is completely written.
+     *
+     * @param file The file to save the index to.
+     * @throws IOException If the index could not be written.
+     */
+    public void save(File file) throws IOException {
+        final File tempFile = new File(file.getPath() + ".tmp");
+        final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(tempFile), 64 * 1024));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(mDirectoryCount);
+            writeChars(out, mDirectoryChars, mDirectoryOffsets[mDirectoryCount]);
+            writeInts(out, mDirectoryOffsets, mDirectoryCount + 1);
+            writeLongs(out, mDirectoryLastModified, mDirectoryCount);
+            writeInts(out, mDirectoryFirstEntry, mDirectoryCount + 1);
+            out.writeInt(mEntryCount);
+            writeChars(out, mNameChars, mNameOffsets[mEntryCount]);
+            writeInts(out, mNameOffsets, mEntryCount + 1);
+            writeInts(out, mEntryParent, mEntryCount);
+            writeInts(out, mEntryDirectory, mEntryCount);
+            writeLongs(out, mEntryLastModified, mEntryCount);
+            writeInts(out, mSorted, mEntryCount);
+        } finally {
+            out.close();
+        }
+        if (!tempFile.renameTo(file)) {
+            tempFile.delete();
+            throw new IOException("Error replacing " + file);
+        }
+    }
+
+    /**
+     * @return The absolute path of the indexed directory.
+     */
+    public String getRoot() {
+        return getDirectoryPath(0);
+    }
+
+    /**
+     * @return The number of files and directories in the index.
+     */
+    public int size() {
+        return mEntryCount;
+    }
+
+    /**
+     * Find the files and directories whose names contain a query, ignoring
+     * case. Names starting with the query come first, alphabetically, then
+     * the other matches in index order.
+     *
+     * @param query The text to search for.
+     * @param limit The maximum number of results.
+     * @return The absolute paths of the matches.
+     */
+    public List<String> search(String query, int limit) {
+        final char[] folded = new char[query.length()];
+        for (int i = 0; i < folded.length; i++)
+            folded[i] = fold(query.charAt(i));
+
+        final ArrayList<String> results = new ArrayList<String>();
+        if (folded.length == 0 || limit <= 0)
+            return results;
+
+        // Prefix matches are next to each other in the sorted array
+        int low = 0;
+        int high = mEntryCount;
+        while (low < high) {
+            final int mid = (low + high) >>> 1;
+            if (comparePrefix(mSorted[mid], folded) < 0)
+                low = mid + 1;
+            else
+                high = mid;
+        }
+        for (int i = low; i < mEntryCount && results.size() < limit; i++) {
+            final int entry = mSorted[i];
+            if (comparePrefix(entry, folded) != 0)
+                break;
+            results.add(getPath(entry));
+        }
+
+        // Then anything containing the query further into the name
+        for (int entry = 0; entry < mEntryCount && results.size() < limit; entry++) {
+            // Already added as a prefix match
+            if (comparePrefix(entry, folded) == 0)
+                continue;
+            final int start = mNameOffsets[entry];
+            final int end = mNameOffsets[entry + 1] - folded.length;
+            for (int i = start + 1; i <= end; i++) {
+                if (matchesAt(i, folded)) {
+                    results.add(getPath(entry));
+                    break;
+                }
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Find the most recently modified files, without touching the disk. A
+     * bounded min-heap holds the newest files seen so far, so each entry costs
+     * one comparison with the oldest of them.
+     *
+     * @param limit The maximum number of files.
+     * @return The absolute paths of the files, newest first.
+     */
+    public List<String> getRecentFiles(int limit) {
+        final int[] heap = new int[Math.max(0, Math.min(limit, mEntryCount))];
+        int size = 0;
+        for (int entry = 0; entry < mEntryCount && heap.length > 0; entry++) {
+            if (mEntryDirectory[entry] >= 0)
+                continue;
+            if (size < heap.length) {
+                // Sift up
+                int i = size++;
+                while (i > 0) {
+                    final int parent = (i - 1) / 2;
+                    if (mEntryLastModified[heap[parent]] <= mEntryLastModified[entry])
+                        break;
+                    heap[i] = heap[parent];
+                    i = parent;
+                }
+                heap[i] = entry;
+            } else if (mEntryLastModified[entry] > mEntryLastModified[heap[0]]) {
+                siftDown(heap, size, entry);
+            }
+        }
+
+        // Pop the oldest until empty, filling the result from the back
+        final String[] paths = new String[size];
+        while (size > 0) {
+            final int oldest = heap[0];
+            size--;
+            if (size > 0)
+                siftDown(heap, size, heap[size]);
+            paths[size] = getPath(oldest);
+        }
+        return Arrays.asList(paths);
+    }
+
+    /**
+     * Replace the root of a min-heap of entries, ordered by modification
+     * time, and restore the heap order.
+     */
+    private void siftDown(int[] heap, int size, int entry) {
+        final long lastModified = mEntryLastModified[entry];
+        int i = 0;
+        while (true) {
+            int child = 2 * i + 1;
+            if (child >= size)
+                break;
+            if (child + 1 < size
+                    && mEntryLastModified[heap[child + 1]] < mEntryLastModified[heap[child]])
+                child++;
+            if (mEntryLastModified[heap[child]] >= lastModified)
+                break;
+            heap[i] = heap[child];
+            i = child;
+        }
+        heap[i] = entry;
+    }
+
+    /**
+     * @param entry The entry number.
+     * @return The absolute path of the entry.
+     */
+    private String getPath(int entry) {
+        final int parent = mEntryParent[entry];
+        final int parentStart = mDirectoryOffsets[parent];
+        final int parentLength = mDirectoryOffsets[parent + 1] - parentStart;
+        final int nameStart = mNameOffsets[entry];
+        final int nameLength = mNameOffsets[entry + 1] - nameStart;
+        final StringBuilder path = new StringBuilder(parentLength + 1 + nameLength);
+        path.append(mDirectoryChars, parentStart, parentLength);
+        if (parentLength == 0 || mDirectoryChars[parentStart + parentLength - 1] != '/')
+            path.append('/');
+        path.append(mNameChars, nameStart, nameLength);
+        return path.toString();
+    }
+
+    private String getDirectoryPath(int directory) {
+        final int start = mDirectoryOffsets[directory];
+        return new String(mDirectoryChars, start, mDirectoryOffsets[directory + 1] - start);
+    }
+
+    private synchronized int getDirectoryNumber(String path) {
+        if (mDirectoryNumbers == null) {
+            mDirectoryNumbers = new HashMap<String, Integer>(mDirectoryCount * 2);
+            for (int d = 0; d < mDirectoryCount; d++)
+                mDirectoryNumbers.put(getDirectoryPath(d), d);
+        }
+        final Integer directory = mDirectoryNumbers.get(path);
+        return directory != null ? directory : -1;
+    }
+
+    /**
+     * Compare the start of an entry's name to a lower case prefix.
+     *
+     * @return 0 if the name starts with prefix, otherwise the order of the
+     *         name relative to prefix.
+     */
+    private int comparePrefix(int entry, char[] prefix) {
+        final int start = mNameOffsets[entry];
+        final int length = mNameOffsets[entry + 1] - start;
+        final int n = Math.min(length, prefix.length);
+        for (int i = 0; i < n; i++) {
+            final char c = fold(mNameChars[start + i]);
+            if (c != prefix[i])
+                return c - prefix[i];
+        }
+        return length < prefix.length ? -1 : 0;
+    }
+
+    private boolean matchesAt(int offset, char[] query) {
+        for (int i = 0; i < query.length; i++) {
+            if (fold(mNameChars[offset + i]) != query[i])
+                return false;
+        }
+        return true;
+    }
+
+    private static char fold(char c) {
+        if (c < 128)
+            return c >= 'A' && c <= 'Z' ? (char) (c + ('a' - 'A')) : c;
+        return Character.toLowerCase(c);
+    }
+
+    private static char[] readChars(ByteBuffer buffer, int count) {
+        final char[] chars = new char[count];
+        buffer.asCharBuffer().get(chars);
+        buffer.position(buffer.position() + count * 2);
+        return chars;
+    }
+
+    private static int[] readInts(ByteBuffer buffer, int count) {
+        final int[] ints = new int[count];
+        buffer.asIntBuffer().get(ints);
+        buffer.position(buffer.position() + count * 4);
+        return ints;
+    }
+
+    private static long[] readLongs(ByteBuffer buffer, int count) {
+        final long[] longs = new long[count];
+        buffer.asLongBuffer().get(longs);
+        buffer.position(buffer.position() + count * 8);
+        return longs;
+    }
+
+    private static void writeLongs(DataOutputStream out, long[] longs, int count)
+            throws IOException {
+        for (int i = 0; i < count; i++)
+            out.writeLong(longs[i]);
+    }
+
+    private static void writeChars(DataOutputStream out, char[] chars, int count)
+            throws IOException {
+        out.writeInt(count);
+        for (int i = 0; i < count; i++)
+            out.writeChar(chars[i]);
+    }
+
+    private static void writeInts(DataOutputStream out, int[] ints, int count)
+            throws IOException {
+        for (int i = 0; i < count; i++)
+            out.writeInt(ints[i]);
+    }
+
+    // Arrays.copyOf() needs API 9
+    private static int[] copyOf(int[] array, int length) {
+        final int[] copy = new int[length];
+        System.arraycopy(array, 0, copy, 0, Math.min(array.length, length));
+        return copy;
+    }
+
+    private static long[] copyOf(long[] array, int length) {
+        final long[] copy = new long[length];
+        System.arraycopy(array, 0, copy, 0, Math.min(array.length, length));
+        return copy;
+    }
+
+    private static char[] copyOf(char[] array, int length) {
+        final char[] copy = new char[length];
+        System.arraycopy(array, 0, copy, 0, Math.min(array.length, length));
+        return copy;
+    }
+
+    /**
+     * Collects directories and entries into growing arrays.
+     */
+    private static class Builder {
+        final ArrayList<String> directories = new ArrayList<String>();
+        long[] directoryLastModified = new long[64];
+        int[] directoryFirstEntry = new int[64];
+
+        int entryCount;
+        char[] nameChars = new char[4096];
+        int nameLength;
+        int[] nameOffsets = new int[256];
+        int[] entryParent = new int[256];
+        int[] entryDirectory = new int[256];
+        long[] entryLastModified = new long[256];
+
+        int addDirectory(String path) {
+            directories.add(path);
+            return directories.size() - 1;
+        }
+
+        void startDirectory(int directory, long lastModified) {
+            if (directory + 1 >= directoryFirstEntry.length) {
+                directoryLastModified = copyOf(directoryLastModified,
+                        directoryLastModified.length * 2);
+                directoryFirstEntry = copyOf(directoryFirstEntry,
+                        directoryFirstEntry.length * 2);
+            }
+            directoryLastModified[directory] = lastModified;
+            directoryFirstEntry[directory] = entryCount;
+        }
+
+        void addEntry(int parent, char[] chars, int start, int length, boolean directory,
+                long lastModified) {
+            if (entryCount + 1 >= nameOffsets.length) {
+                nameOffsets = copyOf(nameOffsets, nameOffsets.length * 2);
+                entryParent = copyOf(entryParent, entryParent.length * 2);
+                entryDirectory = copyOf(entryDirectory, entryDirectory.length * 2);
+                entryLastModified = copyOf(entryLastModified, entryLastModified.length * 2);
+            }
+            if (nameLength + length > nameChars.length)
+                nameChars = copyOf(nameChars, Math.max(nameChars.length * 2,
+                        nameLength + length));
+
+            nameOffsets[entryCount] = nameLength;
+            System.arraycopy(chars, start, nameChars, nameLength, length);
+            nameLength += length;
+            entryParent[entryCount] = parent;
+            entryLastModified[entryCount] = lastModified;
+            if (directory) {
+                final String parentPath = directories.get(parent);
+                final StringBuilder path = new StringBuilder(parentPath);
+                if (!parentPath.endsWith("/"))
+                    path.append('/');
+                path.append(chars, start, length);
+                entryDirectory[entryCount] = addDirectory(path.toString());
+            } else {
+                entryDirectory[entryCount] = -1;
+            }
+            entryCount++;
+        }
+
+        FileIndex build() {
+            final int directoryCount = directories.size();
+            directoryFirstEntry[directoryCount] = entryCount;
+            nameOffsets[entryCount] = nameLength;
+
+            int directoryLength = 0;
+            for (String path : directories)
+                directoryLength += path.length();
+            final char[] directoryChars = new char[directoryLength];
+            final int[] directoryOffsets = new int[directoryCount + 1];
+            int offset = 0;
+            for (int d = 0; d < directoryCount; d++) {
+                final String path = directories.get(d);
+                directoryOffsets[d] = offset;
+                path.getChars(0, path.length(), directoryChars, offset);
+                offset += path.length();
+            }
+            directoryOffsets[directoryCount] = offset;
+
+            final char[] folded = new char[nameLength];
+            for (int i = 0; i < nameLength; i++)
+                folded[i] = fold(nameChars[i]);
+            final int[] offsets = nameOffsets;
+            final Integer[] order = new Integer[entryCount];
+            for (int e = 0; e < entryCount; e++)
+                order[e] = e;
+            Arrays.sort(order, new Comparator<Integer>() {
+                @Override
+                public int compare(Integer e1, Integer e2) {
+                    int i1 = offsets[e1];
+                    int i2 = offsets[e2];
+                    final int end1 = offsets[e1 + 1];
+                    final int end2 = offsets[e2 + 1];
+                    while (i1 < end1 && i2 < end2) {
+                        final int result = folded[i1++] - folded[i2++];
+                        if (result != 0)
+                            return result;
+                    }
+                    return (end1 - i1) - (end2 - i2);
+                }
+            });
+            final int[] sorted = new int[entryCount];
+            for (int e = 0; e < entryCount; e++)
+                sorted[e] = order[e];
+
+            return new FileIndex(directoryCount, directoryChars, directoryOffsets,
+                    copyOf(directoryLastModified, directoryCount),
+                    copyOf(directoryFirstEntry, directoryCount + 1), entryCount,
+                    copyOf(nameChars, nameLength),
+                    copyOf(nameOffsets, entryCount + 1),
+                    copyOf(entryParent, entryCount),
+                    copyOf(entryDirectory, entryCount), copyOf(entryLastModified, entryCount),
+                    sorted);
+        }
+    }
+}
@@ -0,0 +1,391 @@
+/*
+ * Copyright (C) 2013 Paul Burke
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ipaulpro.afilechooser.utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Pattern;
+
+/**
+ * A recursive search for files under a directory, matching a name pattern,
+ * MIME type, size and modification time. Each directory is searched in its
+ * own task on a shared pool of threads, and the matches of each directory are
+ * reported as soon as it has been read.<br>
+ * <br>
+ * Searches are started with
+ * {@link FileUtils#searchFiles(File, Criteria, int, Callback)}.
+ *
+ * @version 2013-12-11
+ * @author paulburke (ipaulpro)
+ */
+public class FileSearch {
+
+    private static Executor sExecutor;
+
+    /**
+     * What a file must match to be found. All set conditions must match.
+     */
+    public static class Criteria {
+        private Pattern mNamePattern;
+        private Pattern mExcludePattern;
+        private String mMimeType;
+        private long mMinSize = -1;
+        private long mMaxSize = -1;
+        private long mModifiedAfter = -1;
+        private long mModifiedBefore = -1;
+        private boolean mShowHidden;
+        private boolean mIncludeDirectories;
+        private boolean mReadAttributes;
+
+        /**
+         * @param glob A name pattern where "*" matches any text and "?" any
+         *            character, ignoring case, e.g. "*.jpg".
+         * @return This Criteria.
+         */
+        public Criteria setNameGlob(String glob) {
+            return setNamePattern(toPattern(glob));
+        }
+
+        /**
+         * @param glob A name pattern, as for {@link #setNameGlob(String)},
+         *            of files to leave out and directories not to search,
+         *            e.g. ".git", or null to leave out nothing.
+         * @return This Criteria.
+         */
+        public Criteria setExcludeGlob(String glob) {
+            mExcludePattern = glob != null ? toPattern(glob) : null;
+            return this;
+        }
+
+        private static Pattern toPattern(String glob) {
+            final StringBuilder regex = new StringBuilder(glob.length() + 8);
+            int literalStart = 0;
+            for (int i = 0; i < glob.length(); i++) {
+                final char c = glob.charAt(i);
+                if (c == '*' || c == '?') {
+                    if (i > literalStart)
+                        regex.append(Pattern.quote(glob.substring(literalStart, i)));
+                    regex.append(c == '*' ? ".*" : ".");
+                    literalStart = i + 1;
+                }
+            }
+            if (glob.length() > literalStart)
+                regex.append(Pattern.quote(glob.substring(literalStart)));
+            return Pattern.compile(regex.toString(), Pattern.CASE_INSENSITIVE
+                    | Pattern.UNICODE_CASE);
+        }
+
+        /**
+         * @param pattern A pattern the whole name must match, or null to
+         *            match any name.
+         * @return This Criteria.
+         */
+        public Criteria setNamePattern(Pattern pattern) {
+            mNamePattern = pattern;
+            return this;
+        }
+
+        /**
+         * @param mimeType A MIME type such as "image/jpeg", or a type with a
+         *            wildcard subtype such as "image/*", or null or "*&#47;*"
+         *            to match any type.
+         * @return This Criteria.
+         */
+        public Criteria setMimeType(String mimeType) {
+            // Any type also matches files whose type is unknown
+            mMimeType = "*/*".equals(mimeType) ? null : mimeType;
+            return this;
+        }
+
+        /**
+         * @param minSize The minimum size in bytes, or -1 for none.
+         * @param maxSize The maximum size in bytes, or -1 for none.
+         * @return This Criteria.
+         */
+        public Criteria setSizeRange(long minSize, long maxSize) {
+            mMinSize = minSize;
+            mMaxSize = maxSize;
+            return this;
+        }
+
+        /**
+         * @param after The earliest modification time in milliseconds since
+         *            the epoch, or -1 for none.
+         * @param before The latest modification time in milliseconds since
+         *            the epoch, or -1 for none.
+         * @return This Criteria.
+         */
+        public Criteria setModifiedRange(long after, long before) {
+            mModifiedAfter = after;
+            mModifiedBefore = before;
+            return this;
+        }
+
+        /**
+         * @param showHidden Whether to search entries starting with ".".
+         * @return This Criteria.
+         */
+        public Criteria setShowHidden(boolean showHidden) {
+            mShowHidden = showHidden;
+            return this;
+        }
+
+        /**
+         * @param includeDirectories Whether directories can be found, by
+         *            name and modification time only.
+         * @return This Criteria.
+         */
+        public Criteria setIncludeDirectories(boolean includeDirectories) {
+            mIncludeDirectories = includeDirectories;
+            return this;
+        }
+
+        /**
+         * @param readAttributes Whether the size and modification time of the
+         *            files found must be read, even if no condition needs
+         *            them.
+         * @return This Criteria.
+         */
+        public Criteria setReadAttributes(boolean readAttributes) {
+            mReadAttributes = readAttributes;
+            return this;
+        }
+
+        boolean needsAttributes() {
+            return mReadAttributes || mMinSize >= 0 || mMaxSize >= 0 || mModifiedAfter >= 0
+                    || mModifiedBefore >= 0;
+        }
+
+        boolean isExcluded(FileEntry entry) {
+            return mExcludePattern != null && mExcludePattern.matcher(entry.getName()).matches();
+        }
+
+        /**
+         * @param entry The entry to test.
+         * @param mimeType The MIME type of a file entry, or null if unknown.
+         */
+        boolean matches(FileEntry entry, String mimeType) {
+            if (entry.isDirectory() && !mIncludeDirectories)
+                return false;
+            if (mNamePattern != null && !mNamePattern.matcher(entry.getName()).matches())
+                return false;
+            if (mModifiedAfter >= 0 && entry.lastModified() < mModifiedAfter)
+                return false;
+            if (mModifiedBefore >= 0 && entry.lastModified() > mModifiedBefore)
+                return false;
+            if (entry.isDirectory())
+                return true;
+            if (mMinSize >= 0 && entry.length() < mMinSize)
+                return false;
+            if (mMaxSize >= 0 && entry.length() > mMaxSize)
+                return false;
+            if (mMimeType != null) {
+                if (mimeType == null)
+                    return false;
+                if (mMimeType.endsWith("/*"))
+                    return mimeType.startsWith(mMimeType.substring(0, mMimeType.length() - 1));
+                return mimeType.equals(mMimeType);
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Interface to receive the results of a search. Methods are called on
+     * worker threads, possibly at the same time.
+     */
+    public interface Callback {
+        /**
+         * Called with the matches of a directory.
+         *
+         * @param search The search.
+         * @param files The files found, with their MIME types.
+         */
+        public void onFilesFound(FileSearch search, List<FileEntry> files);
+
+        /**
+         * Called once every directory was searched or the limit was reached.
+         * Not called if the search was cancelled.
+         *
+         * @param search The search.
+         */
+        public void onSearchFinished(FileSearch search);
+    }
+
+    /**
+     * Searches one directory, and starts a task for each of its
+     * subdirectories.
+     */
+    private class Task implements Runnable {
+        final File dir;
+
+        Task(File dir) {
+            this.dir = dir;
+        }
+
+        @Override
+        public void run() {
+            try {
+                if (!mStopped && visit())
+                    search();
+            } finally {
+                if (mPending.decrementAndGet() == 0 && !mCancelled)
+                    mCallback.onSearchFinished(FileSearch.this);
+            }
+        }
+
+        private boolean visit() {
+            String canonical;
+            try {
+                canonical = dir.getCanonicalPath();
+            } catch (IOException e) {
+                canonical = dir.getAbsolutePath();
+            }
+            return mVisited.putIfAbsent(canonical, Boolean.TRUE) == null;
+        }
+
+        private void search() {
+            final DirectoryScanner.Result scan = DirectoryScanner.scan(dir,
+                    mCriteria.mShowHidden, mCriteria.needsAttributes());
+            final List<FileEntry> found = new ArrayList<FileEntry>();
+            for (FileEntry entry : scan.directories) {
+                if (mCriteria.isExcluded(entry))
+                    continue;
+                mPending.incrementAndGet();
+                mExecutor.execute(new Task(entry.getFile()));
+                if (mCriteria.matches(entry, null))
+                    found.add(entry);
+            }
+            for (FileEntry entry : scan.files) {
+                if (mCriteria.isExcluded(entry))
+                    continue;
+                // Only look up the type first when the criteria need it
+                String mimeType = mCriteria.mMimeType != null ? FileUtils.getMimeType(entry)
+                        : null;
+                if (!mCriteria.matches(entry, mimeType))
+                    continue;
+                if (mimeType == null)
+                    mimeType = FileUtils.getMimeType(entry);
+                found.add(entry.withMimeType(mimeType));
+            }
+            if (found.isEmpty() || mStopped)
+                return;
+
+            // Only report up to the limit, then stop the other tasks
+            final int total = mMatchCount.addAndGet(found.size());
+            final int over = total - mLimit;
+            if (over >= 0)
+                mStopped = true;
+            final List<FileEntry> reported = over > 0 ? found.subList(0,
+                    Math.max(0, found.size() - over)) : found;
+            if (!reported.isEmpty() && !mCancelled)
+                mCallback.onFilesFound(FileSearch.this, reported);
+        }
+    }
+
+    private final File mRoot;
+    private final Criteria mCriteria;
+    private final int mLimit;
+    private final Callback mCallback;
+    private final Executor mExecutor;
+    private final AtomicInteger mPending = new AtomicInteger();
+    private final AtomicInteger mMatchCount = new AtomicInteger();
+    /** Canonical paths of the directories seen, to stop at symlink loops. */
+    private final ConcurrentHashMap<String, Boolean> mVisited =
+            new ConcurrentHashMap<String, Boolean>();
+    private volatile boolean mStopped;
+    private volatile boolean mCancelled;
+
+    /**
+     * @param root The directory to search.
+     * @param criteria What the files must match.
+     * @param limit The maximum number of files to find.
+     * @param callback The callback to report matches to.
+     * @param executor The executor to run the search on.
+     */
+    public FileSearch(File root, Criteria criteria, int limit, Callback callback,
+            Executor executor) {
+        mRoot = root;
+        mCriteria = criteria;
+        mLimit = limit;
+        mCallback = callback;
+        mExecutor = executor;
+    }
+
+    /**
+     * @return A pool of threads shared by all searches, one per processor.
+     */
+    public static synchronized Executor getDefaultExecutor() {
+        if (sExecutor == null) {
+            final int threads = Runtime.getRuntime().availableProcessors();
+            sExecutor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                        @Override
+                        public Thread newThread(Runnable r) {
+                            final Thread thread = new Thread(r, "FileSearch");
+                            thread.setDaemon(true);
+                            thread.setPriority(Thread.MIN_PRIORITY);
+                            return thread;
+                        }
+                    });
+        }
+        return sExecutor;
+    }
+
+    /**
+     * Start the search.
+     *
+     * @return This search.
+     */
+    public FileSearch start() {
+        mPending.incrementAndGet();
+        mExecutor.execute(new Task(mRoot));
+        return this;
+    }
+
+    /**
+     * Stop the search. Directories already queued are skipped, and no more
+     * callbacks are called.
+     */
+    public void cancel() {
+        mCancelled = true;
+        mStopped = true;
+    }
+
+    /**
+     * @return Whether the search was cancelled.
+     */
+    public boolean isCancelled() {
+        return mCancelled;
+    }
+
+    /**
+     * @return The directory being searched.
+     */
+    public File getRoot() {
+        return mRoot;
+    }
+}
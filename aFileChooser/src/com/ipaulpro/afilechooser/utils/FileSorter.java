@@ -0,0 +1,271 @@
+/*
+ * Copyright (C) 2013 Paul Burke
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ipaulpro.afilechooser.utils;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Sorts {@link FileEntry}s by name using a sort key computed once per entry,
+ * instead of lower-casing both names in every comparison. Entries can also be
+ * sorted by natural name order, size, modification time or extension, using
+ * the attributes they already hold.<br>
+ * <br>
+ * This class has no Android dependencies, so it can be run and measured on a
+ * desktop JVM.
+ *
+ * @version 2013-12-11
+ * @author paulburke (ipaulpro)
+ */
+public class FileSorter {
+    private FileSorter() {} //private constructor to enforce Singleton pattern
+
+    /** Sort alphabetically by lower case name. */
+    public static final int SORT_BY_NAME = 0;
+    /** Sort by name, comparing runs of digits by value ("img2" before "img10"). */
+    public static final int SORT_BY_NAME_NATURAL = 1;
+    /** Sort by size, largest first. */
+    public static final int SORT_BY_SIZE = 2;
+    /** Sort by modification time, newest first. */
+    public static final int SORT_BY_LAST_MODIFIED = 3;
+    /** Sort alphabetically by extension, then by name. */
+    public static final int SORT_BY_EXTENSION = 4;
+
+    /**
+     * A FileEntry, its lower case name and where its extension starts.
+     */
+    private static class EntryKey {
+        final FileEntry entry;
+        final char[] name;
+        final int extension;
+
+        EntryKey(FileEntry entry) {
+            this.entry = entry;
+            this.name = toLowerCase(entry.getName());
+            final int dot = entry.isDirectory() ? -1 : entry.getName().lastIndexOf('.');
+            this.extension = dot >= 0 ? dot + 1 : name.length;
+        }
+    }
+
+    private static final Comparator<EntryKey> sNameComparator = new Comparator<EntryKey>() {
+        @Override
+        public int compare(EntryKey k1, EntryKey k2) {
+            return compareKeys(k1.name, k2.name);
+        }
+    };
+
+    private static final Comparator<EntryKey> sNaturalComparator = new Comparator<EntryKey>() {
+        @Override
+        public int compare(EntryKey k1, EntryKey k2) {
+            final int result = compareNatural(k1.name, k2.name);
+            return result != 0 ? result : compareKeys(k1.name, k2.name);
+        }
+    };
+
+    private static final Comparator<EntryKey> sSizeComparator = new Comparator<EntryKey>() {
+        @Override
+        public int compare(EntryKey k1, EntryKey k2) {
+            final long l1 = k1.entry.length();
+            final long l2 = k2.entry.length();
+            if (l1 != l2)
+                return l1 > l2 ? -1 : 1;
+            return compareKeys(k1.name, k2.name);
+        }
+    };
+
+    private static final Comparator<EntryKey> sLastModifiedComparator = new Comparator<EntryKey>() {
+        @Override
+        public int compare(EntryKey k1, EntryKey k2) {
+            final long t1 = k1.entry.lastModified();
+            final long t2 = k2.entry.lastModified();
+            if (t1 != t2)
+                return t1 > t2 ? -1 : 1;
+            return compareKeys(k1.name, k2.name);
+        }
+    };
+
+    private static final Comparator<EntryKey> sExtensionComparator = new Comparator<EntryKey>() {
+        @Override
+        public int compare(EntryKey k1, EntryKey k2) {
+            final int result = compareKeys(k1.name, k1.extension, k2.name, k2.extension);
+            return result != 0 ? result : compareKeys(k1.name, k2.name);
+        }
+    };
+
+    /**
+     * Sort FileEntries with directories first, each group in the given order.
+     * Only the attributes held by the entries are used, so sorting never
+     * touches the disk.
+     *
+     * @param entries The entries to sort, in place.
+     * @param sortOrder One of {@link #SORT_BY_NAME},
+     *            {@link #SORT_BY_NAME_NATURAL}, {@link #SORT_BY_SIZE},
+     *            {@link #SORT_BY_LAST_MODIFIED} or {@link #SORT_BY_EXTENSION}.
+     */
+    public static void sort(List<FileEntry> entries, int sortOrder) {
+        sort(entries, sortOrder, false);
+    }
+
+    /**
+     * Sort FileEntries with directories first, each group in the given order
+     * or its reverse.
+     *
+     * @param entries The entries to sort, in place.
+     * @param sortOrder One of {@link #SORT_BY_NAME},
+     *            {@link #SORT_BY_NAME_NATURAL}, {@link #SORT_BY_SIZE},
+     *            {@link #SORT_BY_LAST_MODIFIED} or {@link #SORT_BY_EXTENSION}.
+     * @param reverse Whether to reverse the order within each group.
+     */
+    public static void sort(List<FileEntry> entries, int sortOrder, boolean reverse) {
+        final int size = entries.size();
+        if (size < 2)
+            return;
+
+        int directories = 0;
+        for (int i = 0; i < size; i++) {
+            if (entries.get(i).isDirectory())
+                directories++;
+        }
+
+        // Split directories from files, keeping each group in list order
+        final EntryKey[] sorted = new EntryKey[size];
+        int d = 0;
+        int f = directories;
+        for (int i = 0; i < size; i++) {
+            final FileEntry entry = entries.get(i);
+            if (entry.isDirectory())
+                sorted[d++] = new EntryKey(entry);
+            else
+                sorted[f++] = new EntryKey(entry);
+        }
+
+        Comparator<EntryKey> comparator = getComparator(sortOrder);
+        if (reverse)
+            comparator = Collections.reverseOrder(comparator);
+        Arrays.sort(sorted, 0, directories, comparator);
+        Arrays.sort(sorted, directories, size, comparator);
+
+        for (int i = 0; i < size; i++)
+            entries.set(i, sorted[i].entry);
+    }
+
+    private static Comparator<EntryKey> getComparator(int sortOrder) {
+        switch (sortOrder) {
+            case SORT_BY_NAME_NATURAL:
+                return sNaturalComparator;
+            case SORT_BY_SIZE:
+                return sSizeComparator;
+            case SORT_BY_LAST_MODIFIED:
+                return sLastModifiedComparator;
+            case SORT_BY_EXTENSION:
+                return sExtensionComparator;
+            default:
+                return sNameComparator;
+        }
+    }
+
+    /**
+     * Compare two names by lower case, without allocating.
+     *
+     * @return A negative number, zero or a positive number if name1 sorts
+     *         before, together with or after name2.
+     */
+    public static int compareNames(String name1, String name2) {
+        final int length1 = name1.length();
+        final int length2 = name2.length();
+        final int length = Math.min(length1, length2);
+        for (int i = 0; i < length; i++) {
+            final char c1 = Character.toLowerCase(name1.charAt(i));
+            final char c2 = Character.toLowerCase(name2.charAt(i));
+            if (c1 != c2)
+                return c1 - c2;
+        }
+        return length1 - length2;
+    }
+
+    private static char[] toLowerCase(String name) {
+        final char[] key = name.toCharArray();
+        for (int i = 0; i < key.length; i++)
+            key[i] = Character.toLowerCase(key[i]);
+        return key;
+    }
+
+    private static int compareKeys(char[] key1, char[] key2) {
+        return compareKeys(key1, 0, key2, 0);
+    }
+
+    private static int compareKeys(char[] key1, int start1, char[] key2, int start2) {
+        final int length1 = key1.length - start1;
+        final int length2 = key2.length - start2;
+        final int length = Math.min(length1, length2);
+        for (int i = 0; i < length; i++) {
+            final char c1 = key1[start1 + i];
+            final char c2 = key2[start2 + i];
+            if (c1 != c2)
+                return c1 - c2;
+        }
+        return length1 - length2;
+    }
+
+    /**
+     * Compare two lower case names, treating each run of digits as one
+     * number. Leading zeros are ignored, so "img01" and "img1" compare equal.
+     */
+    private static int compareNatural(char[] key1, char[] key2) {
+        int i1 = 0;
+        int i2 = 0;
+        while (i1 < key1.length && i2 < key2.length) {
+            final char c1 = key1[i1];
+            final char c2 = key2[i2];
+            if (isDigit(c1) && isDigit(c2)) {
+                // Find the end of each number, and skip its leading zeros
+                int end1 = i1;
+                while (end1 < key1.length && isDigit(key1[end1]))
+                    end1++;
+                int end2 = i2;
+                while (end2 < key2.length && isDigit(key2[end2]))
+                    end2++;
+                while (i1 < end1 - 1 && key1[i1] == '0')
+                    i1++;
+                while (i2 < end2 - 1 && key2[i2] == '0')
+                    i2++;
+
+                // A longer number is a larger number
+                final int digits1 = end1 - i1;
+                final int digits2 = end2 - i2;
+                if (digits1 != digits2)
+                    return digits1 - digits2;
+                for (; i1 < end1; i1++, i2++) {
+                    if (key1[i1] != key2[i2])
+                        return key1[i1] - key2[i2];
+                }
+            } else {
+                if (c1 != c2)
+                    return c1 - c2;
+                i1++;
+                i2++;
+            }
+        }
+        return (key1.length - i1) - (key2.length - i2);
+    }
+
+    private static boolean isDigit(char c) {
+        return c >= '0' && c <= '9';
+    }
+}
@@ -16,6 +16,7 @@
 
 package com.ipaulpro.afilechooser.utils;
 
+import android.content.ClipData;
 import android.content.ContentResolver;
 import android.content.ContentUris;
 import android.content.Context;
@@ -36,7 +37,9 @@ import com.ianhanniballake.localstorage.LocalStorageProvider;
 import java.io.File;
 import java.io.FileFilter;
 import java.text.DecimalFormat;
+import java.util.ArrayList;
 import java.util.Comparator;
+import java.util.List;
 
 /**
  * @version 2009-07-03
@@ -138,15 +141,136 @@ public class FileUtils {
         return null;
     }
 
+    /**
+     * Extensions whose types are read from {@link MimeTypeMap} once, into the
+     * default {@link MimeTypes} table.
+     */
+    private static final String[] COMMON_EXTENSIONS = {
+            "3gp", "3gpp", "aac", "amr", "apk", "avi", "bmp", "css", "csv", "doc", "docx",
+            "epub", "flac", "flv", "gif", "gz", "htm", "html", "ico", "jar", "jpeg", "jpg",
+            "js", "json", "log", "m3u", "m4a", "m4v", "mid", "midi", "mkv", "mov", "mp3",
+            "mp4", "mpeg", "mpg", "odp", "ods", "odt", "ogg", "pdf", "png", "ppt", "pptx",
+            "rar", "rtf", "svg", "tar", "tif", "tiff", "ts", "txt", "vcf", "wav", "webm",
+            "webp", "wma", "wmv", "xls", "xlsx", "xml", "zip"
+    };
+
+    private static volatile MimeTypes sMimeTypes;
+
+    /**
+     * @return The table used to look up the MIME types of files. Built on
+     *         first use from the platform's types of common extensions.
+     */
+    public static MimeTypes getMimeTypes() {
+        MimeTypes mimeTypes = sMimeTypes;
+        if (mimeTypes == null) {
+            final MimeTypes.Builder builder = new MimeTypes.Builder();
+            final MimeTypeMap platform = MimeTypeMap.getSingleton();
+            for (String extension : COMMON_EXTENSIONS)
+                builder.add(extension, platform.getMimeTypeFromExtension(extension));
+            mimeTypes = builder.build();
+            sMimeTypes = mimeTypes;
+        }
+        return mimeTypes;
+    }
+
+    /**
+     * Replace the table used to look up the MIME types of files, for example
+     * to add types with
+     * <code>new MimeTypes.Builder(getMimeTypes()).add("md", "text/markdown").build()</code>.
+     * Extensions not in the table are still looked up in {@link MimeTypeMap}.
+     *
+     * @param mimeTypes The new table.
+     */
+    public static void setMimeTypes(MimeTypes mimeTypes) {
+        sMimeTypes = mimeTypes;
+    }
+
+    /**
+     * Get the MIME type of a file name from {@link #getMimeTypes()}, or from
+     * {@link MimeTypeMap} if the extension is not in the table.
+     *
+     * @param name The name of the file.
+     * @return The MIME type, or null if the name has no extension or its type
+     *         is unknown.
+     */
+    public static String getMimeTypeFromName(String name) {
+        final int dot = name.lastIndexOf('.');
+        if (dot < 0)
+            return null;
+        final String mimeType = getMimeTypes().getMimeType(name, dot + 1, name.length());
+        if (mimeType != null)
+            return mimeType;
+        return MimeTypeMap.getSingleton().getMimeTypeFromExtension(name.substring(dot + 1));
+    }
+
+    private static volatile boolean sSniffContent;
+
+    /**
+     * Set whether files whose name has no known extension are typed from
+     * their content by {@link MimeSniffer}, so that extension-less camera
+     * and backup files are not reported as "application/octet-stream". Off
+     * by default, because it reads the start of each such file once.
+     *
+     * @param sniffContent Whether to detect types from content.
+     */
+    public static void setContentSniffing(boolean sniffContent) {
+        sSniffContent = sniffContent;
+    }
+
+    /**
+     * @return Whether files are typed from their content when their name has
+     *         no known extension.
+     */
+    public static boolean isContentSniffing() {
+        return sSniffContent;
+    }
+
     /**
      * @return The MIME type for the given file.
      */
     public static String getMimeType(File file) {
+        return getMimeType(file, 0);
+    }
 
-        String extension = getExtension(file.getName());
+    /**
+     * @return The MIME type for the given entry, reusing its modification
+     *         time if it was read.
+     */
+    public static String getMimeType(FileEntry entry) {
+        return getMimeType(entry, sSniffContent);
+    }
 
-        if (extension.length() > 0)
-            return MimeTypeMap.getSingleton().getMimeTypeFromExtension(extension.substring(1));
+    /**
+     * Get the MIME type of an entry, deciding for this call only whether a
+     * name without a known extension is typed from the content.
+     *
+     * @param entry The entry, reusing its modification time if it was read.
+     * @param sniffContent Whether to detect the type from the content,
+     *            regardless of {@link #isContentSniffing()}.
+     * @return The MIME type for the given entry.
+     */
+    public static String getMimeType(FileEntry entry, boolean sniffContent) {
+        return getMimeType(entry.getFile(), entry.lastModified(), sniffContent);
+    }
+
+    private static String getMimeType(File file, long lastModified) {
+        return getMimeType(file, lastModified, sSniffContent);
+    }
+
+    private static String getMimeType(File file, long lastModified, boolean sniffContent) {
+
+        final String name = file.getName();
+        final boolean hasExtension = name.indexOf('.') >= 0;
+        final String mimeType = hasExtension ? getMimeTypeFromName(name) : null;
+
+        if (mimeType == null && sniffContent) {
+            final String sniffed = MimeSniffer.getMimeType(file, lastModified);
+            if (sniffed != null)
+                return sniffed;
+        }
+
+        if (hasExtension)
+            return mimeType;
 
         return "application/octet-stream";
     }
@@ -224,6 +348,7 @@ public class FileUtils {
         };
 
         try {
+            UriPathResolver.countQuery();
             cursor = context.getContentResolver().query(uri, projection, selection, selectionArgs,
                     null);
             if (cursor != null && cursor.moveToFirst()) {
@@ -246,7 +371,8 @@ public class FileUtils {
      * other file-based ContentProviders.<br>
      * <br>
      * Callers should check whether the path is local before assuming it
-     * represents a local file.
+     * represents a local file. Paths are cached by {@link UriPathResolver},
+     * so resolving the same Uri again doesn't query its provider.
      * 
      * @param context The context.
      * @param uri The Uri to query.
@@ -255,6 +381,30 @@ public class FileUtils {
      * @author paulburke
      */
     public static String getPath(final Context context, final Uri uri) {
+        return UriPathResolver.getPath(context, uri);
+    }
+
+    /**
+     * Get the file paths of many Uris at once, such as a multiple selection.
+     * MediaStore and Downloads Uris are resolved with one query per table
+     * rather than one per Uri.
+     *
+     * @param context The context.
+     * @param uris The Uris to query.
+     * @return The paths, in the order of uris, with null for Uris that have
+     *         none.
+     * @see #getPath(Context, Uri)
+     */
+    public static List<String> getPaths(final Context context, final List<Uri> uris) {
+        return UriPathResolver.getPaths(context, uris);
+    }
+
+    /**
+     * Resolve the path of a Uri without the cache.
+     *
+     * @see #getPath(Context, Uri)
+     */
+    static String queryPath(final Context context, final Uri uri) {
 
         if (DEBUG)
             Log.d(TAG + " File -",
@@ -286,7 +436,31 @@ public class FileUtils {
                     return Environment.getExternalStorageDirectory() + "/" + split[1];
                 }
 
-                // TODO handle non-primary volumes
+                // Other volumes are named by their UUID. From Android 6.0 that
+                // is also the name of their mount point, but before it the
+                // mount point is named by the device (/storage/extSdCard,
+                // /storage/sdcard1), and the UUID of a volume can't be read
+                // through the public API. Failing a name match, the document
+                // is looked for on each secondary volume, and a single
+                // secondary volume is taken to be the one.
+                final String path = split.length > 1 ? split[1] : "";
+                final List<File> volumes = getStorageVolumes(context);
+                final List<File> secondary = new ArrayList<File>(volumes.size());
+                for (File volume : volumes) {
+                    if (volume.equals(Environment.getExternalStorageDirectory()))
+                        continue;
+                    if (type.equalsIgnoreCase(volume.getName()))
+                        return volume + "/" + path;
+                    secondary.add(volume);
+                }
+                if (secondary.size() == 1)
+                    return secondary.get(0) + "/" + path;
+                if (path.length() > 0) {
+                    for (File volume : secondary) {
+                        if (new File(volume, path).exists())
+                            return volume + "/" + path;
+                    }
+                }
             }
             // DownloadsProvider
             else if (isDownloadsDocument(uri)) {
@@ -337,6 +511,44 @@ public class FileUtils {
         return null;
     }
 
+    /**
+     * Get the root directories of all mounted storage volumes, primary first.
+     * Secondary volumes, such as SD cards, can only be found on KitKat and
+     * above.
+     *
+     * @param context The context.
+     * @return The root directories of the mounted volumes.
+     * @author paulburke
+     */
+    public static List<File> getStorageVolumes(Context context) {
+        final List<File> volumes = new ArrayList<File>();
+        final String state = Environment.getExternalStorageState();
+        if (Environment.MEDIA_MOUNTED.equals(state)
+                || Environment.MEDIA_MOUNTED_READ_ONLY.equals(state))
+            volumes.add(Environment.getExternalStorageDirectory());
+
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.KITKAT)
+            return volumes;
+
+        // The app's own directory on each volume is the only public way to
+        // find them; the volume root is above its Android/data directory
+        final File[] dirs = context.getExternalFilesDirs(null);
+        for (int i = 1; i < dirs.length; i++) {
+            final File dir = dirs[i];
+            if (dir == null)
+                continue;
+            final String volumeState = Environment.getStorageState(dir);
+            if (!Environment.MEDIA_MOUNTED.equals(volumeState)
+                    && !Environment.MEDIA_MOUNTED_READ_ONLY.equals(volumeState))
+                continue;
+            final String path = dir.getAbsolutePath();
+            final int androidDir = path.indexOf("/Android/data/");
+            if (androidDir > 0)
+                volumes.add(new File(path.substring(0, androidDir)));
+        }
+        return volumes;
+    }
+
     /**
      * Convert Uri into File, if possible.
      *
@@ -355,6 +567,37 @@ public class FileUtils {
         return null;
     }
 
+    private static final String COPY_CACHE_DIR = "uriFiles";
+
+    private static UriFileCache sUriFileCache;
+
+    /**
+     * Get a local file for any Uri that can be opened, in the background.
+     * Unlike {@link #getFile(Context, Uri)}, Uris without a local path, such
+     * as Google Photos or cloud documents, are copied into a cache of up to
+     * {@link UriFileCache#DEFAULT_MAX_BYTES}. A Uri copied before is
+     * returned without being copied again, unless it changed. Call
+     * {@link UriFileCache.Request#release()} once the file was read, so the
+     * copy can be dropped.
+     *
+     * @param context The context.
+     * @param uri The Uri to get a file for.
+     * @param callback The callback to report progress and the file to, on
+     *            the main thread.
+     * @return The request, which can be cancelled.
+     */
+    public static UriFileCache.Request getFileAsync(Context context, Uri uri,
+            UriFileCache.Callback callback) {
+        return getUriFileCache(context).getFile(uri, callback);
+    }
+
+    private static synchronized UriFileCache getUriFileCache(Context context) {
+        if (sUriFileCache == null)
+            sUriFileCache = new UriFileCache(context, new File(context.getCacheDir(),
+                    COPY_CACHE_DIR), UriFileCache.DEFAULT_MAX_BYTES);
+        return sUriFileCache;
+    }
+
     /**
      * Get the file size in a human-readable string.
      *
@@ -477,8 +720,7 @@ public class FileUtils {
         @Override
         public int compare(File f1, File f2) {
             // Sort alphabetically by lower case, which is much cleaner
-            return f1.getName().toLowerCase().compareTo(
-                    f2.getName().toLowerCase());
+            return FileSorter.compareNames(f1.getName(), f2.getName());
         }
     };
 
@@ -510,6 +752,23 @@ public class FileUtils {
         }
     };
 
+    /**
+     * Search a directory and all its subdirectories for files in the
+     * background, on a pool of threads shared by all searches.
+     *
+     * @param root The directory to search.
+     * @param criteria What the files must match.
+     * @param limit The maximum number of files to find.
+     * @param callback The callback to report matches to, on worker threads.
+     * @return The running search, which can be cancelled.
+     * @author paulburke
+     */
+    public static FileSearch searchFiles(File root, FileSearch.Criteria criteria, int limit,
+            FileSearch.Callback callback) {
+        return new FileSearch(root, criteria, limit, callback,
+                FileSearch.getDefaultExecutor()).start();
+    }
+
     /**
      * Get the Intent for selecting content to be used in an Intent Chooser.
      *
@@ -525,4 +784,33 @@ public class FileUtils {
         intent.addCategory(Intent.CATEGORY_OPENABLE);
         return intent;
     }
+
+    /**
+     * Get the URIs of the files selected in a chooser, whether one or several
+     * were returned.
+     *
+     * @param data The result Intent of the chooser.
+     * @return The URIs selected, in the order they were selected.
+     * @see com.ipaulpro.afilechooser.FileChooserActivity#EXTRA_ALLOW_MULTIPLE
+     */
+    public static List<Uri> getResultUris(Intent data) {
+        final List<Uri> uris = new ArrayList<Uri>();
+        if (data == null)
+            return uris;
+
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+            final ClipData clip = data.getClipData();
+            if (clip != null) {
+                for (int i = 0; i < clip.getItemCount(); i++)
+                    uris.add(clip.getItemAt(i).getUri());
+                return uris;
+            }
+        }
+        final ArrayList<Uri> stream = data.getParcelableArrayListExtra(Intent.EXTRA_STREAM);
+        if (stream != null)
+            uris.addAll(stream);
+        else if (data.getData() != null)
+            uris.add(data.getData());
+        return uris;
+    }
 }
@@ -0,0 +1,274 @@
+/*
+ * Copyright (C) 2013 Paul Burke
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ipaulpro.afilechooser.utils;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Detects the MIME type of a file from the magic number at its start, for
+ * files whose name has no known extension. At most {@link #HEADER_BYTES} are
+ * read, into a direct buffer reused by each thread, and compared with a table
+ * of signatures grouped by their first byte. Results are remembered by path
+ * and modification time, so a listing is only sniffed again for the files
+ * that changed.
+ *
+ * @version 2013-12-11
+ * @author paulburke (ipaulpro)
+ */
+public class MimeSniffer {
+
+    /** Maximum number of bytes read from a file. Covers the tar header. */
+    public static final int HEADER_BYTES = 264;
+
+    /** Maximum number of files whose type is remembered. */
+    public static final int MAX_ENTRIES = 4096;
+
+    private static final AtomicInteger sReadCount = new AtomicInteger();
+
+    /**
+     * Bytes expected at an offset, optionally followed by a second group of
+     * bytes at another offset.
+     */
+    private static class Signature {
+        final int offset;
+        final byte[] magic;
+        final int secondOffset;
+        final byte[] secondMagic;
+        final String mimeType;
+
+        Signature(int offset, String magic, int secondOffset, String secondMagic,
+                String mimeType) {
+            this.offset = offset;
+            this.magic = toBytes(magic);
+            this.secondOffset = secondOffset;
+            this.secondMagic = secondMagic != null ? toBytes(secondMagic) : null;
+            this.mimeType = mimeType;
+        }
+
+        boolean matches(ByteBuffer header) {
+            return matches(header, offset, magic)
+                    && (secondMagic == null || matches(header, secondOffset, secondMagic));
+        }
+
+        private static boolean matches(ByteBuffer header, int offset, byte[] magic) {
+            if (offset + magic.length > header.limit())
+                return false;
+            for (int i = 0; i < magic.length; i++) {
+                if (header.get(offset + i) != magic[i])
+                    return false;
+            }
+            return true;
+        }
+
+        /** Each char of magic is one byte, so "\u00ff" is 0xff. */
+        private static byte[] toBytes(String magic) {
+            final byte[] bytes = new byte[magic.length()];
+            for (int i = 0; i < bytes.length; i++)
+                bytes[i] = (byte) magic.charAt(i);
+            return bytes;
+        }
+    }
+
+    /**
+     * The signatures, more specific ones first. Those at offset 0 are also
+     * indexed by their first byte in sByFirstByte.
+     */
+    private static final Signature[] SIGNATURES = {
+            new Signature(0, "\u00ff\u00d8\u00ff", 0, null, "image/jpeg"),
+            new Signature(0, "\u0089PNG\r\n\u001a\n", 0, null, "image/png"),
+            new Signature(0, "GIF87a", 0, null, "image/gif"),
+            new Signature(0, "GIF89a", 0, null, "image/gif"),
+            new Signature(0, "BM", 0, null, "image/bmp"),
+            new Signature(0, "II*\u0000", 0, null, "image/tiff"),
+            new Signature(0, "MM\u0000*", 0, null, "image/tiff"),
+            new Signature(0, "RIFF", 8, "WEBP", "image/webp"),
+            new Signature(0, "RIFF", 8, "WAVE", "audio/x-wav"),
+            new Signature(0, "RIFF", 8, "AVI ", "video/avi"),
+            new Signature(4, "ftyp", 8, "heic", "image/heic"),
+            new Signature(4, "ftyp", 8, "heix", "image/heic"),
+            new Signature(4, "ftyp", 8, "mif1", "image/heif"),
+            new Signature(4, "ftyp", 8, "3gp", "video/3gpp"),
+            new Signature(4, "ftyp", 8, "M4A ", "audio/mp4"),
+            new Signature(4, "ftyp", 8, "qt  ", "video/quicktime"),
+            new Signature(4, "ftyp", 0, null, "video/mp4"),
+            new Signature(0, "\u001aE\u00df\u00a3", 0, null, "video/x-matroska"),
+            new Signature(0, "ID3", 0, null, "audio/mpeg"),
+            new Signature(0, "\u00ff\u00fb", 0, null, "audio/mpeg"),
+            new Signature(0, "\u00ff\u00f3", 0, null, "audio/mpeg"),
+            new Signature(0, "\u00ff\u00f2", 0, null, "audio/mpeg"),
+            new Signature(0, "OggS", 0, null, "application/ogg"),
+            new Signature(0, "fLaC", 0, null, "audio/flac"),
+            new Signature(0, "#!AMR", 0, null, "audio/amr"),
+            new Signature(0, "MThd", 0, null, "audio/midi"),
+            new Signature(0, "%PDF-", 0, null, "application/pdf"),
+            new Signature(0, "PK\u0003\u0004", 0, null, "application/zip"),
+            new Signature(0, "\u001f\u008b", 0, null, "application/x-gzip"),
+            new Signature(0, "Rar!\u001a\u0007", 0, null, "application/x-rar-compressed"),
+            new Signature(0, "7z\u00bc\u00af'\u001c", 0, null, "application/x-7z-compressed"),
+            new Signature(257, "ustar", 0, null, "application/x-tar"),
+            new Signature(0, "SQLite format 3\u0000", 0, null, "application/x-sqlite3"),
+    };
+
+    /** Signatures at offset 0 by their first byte, in the order above. */
+    private static final Signature[][] sByFirstByte = new Signature[256][];
+    /** Signatures at other offsets, checked for every file. */
+    private static final Signature[] sOtherOffsets;
+
+    static {
+        final List<Signature> others = new ArrayList<Signature>();
+        for (Signature signature : SIGNATURES) {
+            if (signature.offset != 0) {
+                others.add(signature);
+                continue;
+            }
+            final int first = signature.magic[0] & 0xff;
+            final Signature[] bucket = sByFirstByte[first];
+            final Signature[] grown = new Signature[bucket != null ? bucket.length + 1 : 1];
+            if (bucket != null)
+                System.arraycopy(bucket, 0, grown, 0, bucket.length);
+            grown[grown.length - 1] = signature;
+            sByFirstByte[first] = grown;
+        }
+        sOtherOffsets = others.toArray(new Signature[others.size()]);
+    }
+
+    private static final ThreadLocal<ByteBuffer> sBuffer = new ThreadLocal<ByteBuffer>() {
+        @Override
+        protected ByteBuffer initialValue() {
+            return ByteBuffer.allocateDirect(HEADER_BYTES);
+        }
+    };
+
+    /**
+     * A remembered result, valid while the file keeps its modification time.
+     */
+    private static class Result {
+        final long lastModified;
+        final String mimeType;
+
+        Result(long lastModified, String mimeType) {
+            this.lastModified = lastModified;
+            this.mimeType = mimeType;
+        }
+    }
+
+    private static final LinkedHashMap<String, Result> sResults = new LinkedHashMap<String, Result>(
+            16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Result> eldest) {
+            return size() > MAX_ENTRIES;
+        }
+    };
+
+    private MimeSniffer() {} // private constructor to enforce Singleton pattern
+
+    /**
+     * Get the MIME type of a file from its content.
+     *
+     * @param file The file to read.
+     * @param lastModified The modification time of the file, or 0 to read
+     *            it.
+     * @return The MIME type, or null if the content is not recognized or the
+     *         file can't be read.
+     */
+    public static String getMimeType(File file, long lastModified) {
+        if (lastModified <= 0)
+            lastModified = file.lastModified();
+        final String path = file.getAbsolutePath();
+        synchronized (sResults) {
+            final Result result = sResults.get(path);
+            if (result != null && result.lastModified == lastModified)
+                return result.mimeType;
+        }
+
+        final String mimeType = detect(file);
+        synchronized (sResults) {
+            sResults.put(path, new Result(lastModified, mimeType));
+        }
+        return mimeType;
+    }
+
+    /**
+     * Forget all remembered results.
+     */
+    public static void clear() {
+        synchronized (sResults) {
+            sResults.clear();
+        }
+    }
+
+    /**
+     * @return The number of files read since the last call to
+     *         {@link #resetReadCount()}.
+     */
+    public static int getReadCount() {
+        return sReadCount.get();
+    }
+
+    public static void resetReadCount() {
+        sReadCount.set(0);
+    }
+
+    private static String detect(File file) {
+        final ByteBuffer header = sBuffer.get();
+        header.clear();
+        FileInputStream in = null;
+        try {
+            sReadCount.incrementAndGet();
+            in = new FileInputStream(file);
+            final FileChannel channel = in.getChannel();
+            while (header.hasRemaining() && channel.read(header) >= 0) {
+                // Short reads are possible on some file systems
+            }
+        } catch (IOException e) {
+            return null;
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    // Ignore
+                }
+            }
+        }
+        header.flip();
+        if (!header.hasRemaining())
+            return null;
+
+        final Signature[] bucket = sByFirstByte[header.get(0) & 0xff];
+        if (bucket != null) {
+            for (Signature signature : bucket) {
+                if (signature.matches(header))
+                    return signature.mimeType;
+            }
+        }
+        for (Signature signature : sOtherOffsets) {
+            if (signature.matches(header))
+                return signature.mimeType;
+        }
+        return null;
+    }
+}
@@ -0,0 +1,173 @@
+/*
+ * Copyright (C) 2013 Paul Burke
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ipaulpro.afilechooser.utils;
+
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * An immutable table of file extensions to MIME types. Extensions are stored
+ * in an open-addressed array and looked up in place, ignoring case, straight
+ * from a file name: no substring or lower case copy is made, so looking up
+ * the type of each file in a large listing doesn't allocate.<br>
+ * <br>
+ * Tables are built with a {@link Builder}. The table used by
+ * {@link FileUtils#getMimeType(java.io.File)} can be extended with
+ * {@link FileUtils#setMimeTypes(MimeTypes)}.
+ *
+ * @version 2013-12-11
+ * @author paulburke (ipaulpro)
+ */
+public class MimeTypes {
+
+    /**
+     * Collects extensions and their MIME types for a new table.
+     */
+    public static class Builder {
+        private final LinkedHashMap<String, String> mTypes = new LinkedHashMap<String, String>();
+
+        public Builder() {
+        }
+
+        /**
+         * @param table A table whose types to start from.
+         */
+        public Builder(MimeTypes table) {
+            for (int i = 0; i < table.mExtensions.length; i++) {
+                if (table.mExtensions[i] != null)
+                    mTypes.put(table.mExtensions[i], table.mTypes[i]);
+            }
+        }
+
+        /**
+         * @param extension The extension, with or without the leading dot.
+         * @param mimeType The MIME type of files with the extension. Replaces
+         *            any type added before for the extension.
+         * @return This Builder.
+         */
+        public Builder add(String extension, String mimeType) {
+            if (extension.startsWith("."))
+                extension = extension.substring(1);
+            if (extension.length() > 0 && mimeType != null)
+                mTypes.put(extension.toLowerCase(Locale.US), mimeType);
+            return this;
+        }
+
+        /**
+         * @return A new table of the extensions added.
+         */
+        public MimeTypes build() {
+            return new MimeTypes(mTypes);
+        }
+    }
+
+    /** Extensions in lower case, at the slot of their hash; null if empty. */
+    private final String[] mExtensions;
+    private final String[] mTypes;
+    private final int mMask;
+
+    private MimeTypes(Map<String, String> types) {
+        // Keep the table at most half full, so misses end after a few probes
+        int capacity = 4;
+        while (capacity < types.size() * 2)
+            capacity <<= 1;
+        mExtensions = new String[capacity];
+        mTypes = new String[capacity];
+        mMask = capacity - 1;
+        for (Map.Entry<String, String> entry : types.entrySet()) {
+            final String extension = entry.getKey();
+            int slot = hash(extension, 0, extension.length()) & mMask;
+            while (mExtensions[slot] != null)
+                slot = (slot + 1) & mMask;
+            mExtensions[slot] = extension;
+            mTypes[slot] = entry.getValue();
+        }
+    }
+
+    /**
+     * Get the MIME type of a file from the extension of its name.
+     *
+     * @param name The name or path of the file.
+     * @return The MIME type, or null if the name has no extension or it is not
+     *         in this table.
+     */
+    public String getMimeType(String name) {
+        final int dot = name.lastIndexOf('.');
+        if (dot < 0)
+            return null;
+        return getMimeType(name, dot + 1, name.length());
+    }
+
+    /**
+     * Get the MIME type of an extension.
+     *
+     * @param text The text containing the extension.
+     * @param start The index of the first character of the extension, after
+     *            the dot.
+     * @param end The index after the last character of the extension.
+     * @return The MIME type, or null if the extension is not in this table.
+     */
+    public String getMimeType(CharSequence text, int start, int end) {
+        if (start >= end)
+            return null;
+        int slot = hash(text, start, end) & mMask;
+        String extension;
+        while ((extension = mExtensions[slot]) != null) {
+            if (matches(extension, text, start, end))
+                return mTypes[slot];
+            slot = (slot + 1) & mMask;
+        }
+        return null;
+    }
+
+    /**
+     * @return The number of extensions in this table.
+     */
+    public int size() {
+        int size = 0;
+        for (String extension : mExtensions) {
+            if (extension != null)
+                size++;
+        }
+        return size;
+    }
+
+    private static int hash(CharSequence text, int start, int end) {
+        int hash = 0;
+        for (int i = start; i < end; i++)
+            hash = 31 * hash + toLowerCase(text.charAt(i));
+        // Spread the high bits into the low ones used by the mask
+        return hash ^ (hash >>> 16);
+    }
+
+    private static boolean matches(String extension, CharSequence text, int start, int end) {
+        if (extension.length() != end - start)
+            return false;
+        for (int i = 0; i < extension.length(); i++) {
+            if (extension.charAt(i) != toLowerCase(text.charAt(start + i)))
+                return false;
+        }
+        return true;
+    }
+
+    private static char toLowerCase(char c) {
+        if (c < 128)
+            return c >= 'A' && c <= 'Z' ? (char) (c + ('a' - 'A')) : c;
+        return Character.toLowerCase(c);
+    }
+}
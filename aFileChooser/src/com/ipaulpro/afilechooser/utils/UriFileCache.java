@@ -0,0 +1,479 @@
+/*
+ * Copyright (C) 2013 Paul Burke
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ipaulpro.afilechooser.utils;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.ParcelFileDescriptor;
+import android.os.SystemClock;
+import android.provider.DocumentsContract;
+import android.provider.OpenableColumns;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Gives a local file for any Uri that can be opened, copying its content
+ * into a {@link DiskCache} when it has no path of its own, as for Google
+ * Photos and cloud providers. Copies are keyed by the Uri, size and
+ * modification time reported by its provider, so a Uri copied before is
+ * returned without copying it again until it changes. A cached copy is kept
+ * until the caller calls {@link Request#release()}, however many copies
+ * are made meanwhile.<br>
+ * <br>
+ * Copies run in the background. Files are moved with
+ * {@link FileChannel#transferFrom(ReadableByteChannel, long, long)}, or
+ * through a large buffer reused by each thread when the source is a pipe.
+ * Copies are started with
+ * {@link FileUtils#getFileAsync(Context, Uri, Callback)}.
+ *
+ * @version 2013-12-11
+ * @author paulburke (ipaulpro)
+ */
+public class UriFileCache {
+
+    /** Default maximum total size of the copied files. */
+    public static final long DEFAULT_MAX_BYTES = 64 * 1024 * 1024;
+
+    /** Size of the buffer used to copy from pipes. */
+    private static final int BUFFER_BYTES = 256 * 1024;
+    /** Bytes moved per transfer, between checks for cancellation. */
+    private static final long TRANSFER_BYTES = 4 * 1024 * 1024;
+    private static final long PROGRESS_INTERVAL_MILLIS = 100;
+
+    /**
+     * Interface to receive the file of a Uri. Methods are called on the main
+     * thread, and none are called once the request was cancelled.
+     */
+    public interface Callback {
+        /**
+         * Called while the content of the Uri is copied.
+         *
+         * @param request The request.
+         * @param bytesCopied The number of bytes copied so far.
+         * @param totalBytes The size of the content, or -1 if unknown.
+         */
+        public void onProgress(Request request, long bytesCopied, long totalBytes);
+
+        /**
+         * Called with the local file of the Uri, which is the cached copy if
+         * it has no path of its own. A copy stays valid until
+         * {@link Request#release()} is called, which must be done once the
+         * file was read or copied elsewhere.
+         *
+         * @param request The request.
+         * @param file The file.
+         */
+        public void onFileReady(Request request, File file);
+
+        /**
+         * Called if the Uri could not be read or copied.
+         *
+         * @param request The request.
+         * @param e The error.
+         */
+        public void onError(Request request, IOException e);
+    }
+
+    /**
+     * A running request for the file of a Uri.
+     */
+    public class Request {
+        private final Uri mUri;
+        private final Callback mCallback;
+        private volatile boolean mCancelled;
+        private long mProgressAt;
+        private File mFile;
+        private boolean mPinned;
+
+        Request(Uri uri, Callback callback) {
+            mUri = uri;
+            mCallback = callback;
+        }
+
+        /**
+         * @return The Uri requested.
+         */
+        public Uri getUri() {
+            return mUri;
+        }
+
+        /**
+         * Stop the request. A partial copy is deleted, and no callback is
+         * called.
+         */
+        public void cancel() {
+            mCancelled = true;
+        }
+
+        /**
+         * Let the copy given to
+         * {@link Callback#onFileReady(Request, File)} be dropped from the
+         * cache, or delete it if it was too large to cache. Files that were
+         * not copied are left alone.
+         */
+        public void release() {
+            final File file;
+            final boolean pinned;
+            synchronized (this) {
+                file = mFile;
+                pinned = mPinned;
+                mFile = null;
+            }
+            if (file == null)
+                return;
+            if (pinned)
+                getDiskCache().release(file);
+            else
+                file.delete();
+        }
+
+        /**
+         * @return Whether the request was cancelled.
+         */
+        public boolean isCancelled() {
+            return mCancelled;
+        }
+
+        void run() {
+            if (mCancelled)
+                return;
+            try {
+                final File file = getFile(this);
+                if (file != null)
+                    postFileReady(file);
+            } catch (IOException e) {
+                postError(e);
+            } catch (RuntimeException e) {
+                // Providers throw SecurityException once a grant is gone, and
+                // IllegalArgumentException for Uris they don't know
+                final IOException error = new IOException("Could not read " + mUri);
+                error.initCause(e);
+                postError(error);
+            }
+        }
+
+        void postProgress(final long bytesCopied, final long totalBytes, boolean force) {
+            final long now = SystemClock.uptimeMillis();
+            if (!force && now - mProgressAt < PROGRESS_INTERVAL_MILLIS)
+                return;
+            mProgressAt = now;
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    if (!mCancelled)
+                        mCallback.onProgress(Request.this, bytesCopied, totalBytes);
+                }
+            });
+        }
+
+        /**
+         * Keep a copy to release once the caller is done with it.
+         *
+         * @param file The copy.
+         * @param pinned Whether the copy is pinned in the cache, or else is
+         *            a temporary file too large to cache.
+         */
+        synchronized void setCopy(File file, boolean pinned) {
+            mFile = file;
+            mPinned = pinned;
+        }
+
+        private void postFileReady(final File file) {
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    if (!mCancelled)
+                        mCallback.onFileReady(Request.this, file);
+                    else
+                        release();
+                }
+            });
+        }
+
+        private void postError(final IOException e) {
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    if (!mCancelled)
+                        mCallback.onError(Request.this, e);
+                }
+            });
+        }
+    }
+
+    /**
+     * What the provider reports about the content of a Uri.
+     */
+    private static class Metadata {
+        String displayName;
+        long size = -1;
+        long lastModified = -1;
+    }
+
+    private final Context mContext;
+    private final File mDirectory;
+    private final long mMaxBytes;
+    private DiskCache mCache;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final ExecutorService mExecutor = new ThreadPoolExecutor(2, 2, 0, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    final Thread thread = new Thread(r, "UriFileCache");
+                    thread.setDaemon(true);
+                    thread.setPriority(Thread.MIN_PRIORITY);
+                    return thread;
+                }
+            });
+    private final ThreadLocal<ByteBuffer> mBuffer = new ThreadLocal<ByteBuffer>() {
+        @Override
+        protected ByteBuffer initialValue() {
+            return ByteBuffer.allocateDirect(BUFFER_BYTES);
+        }
+    };
+
+    /**
+     * @param context The context.
+     * @param directory The directory to keep the copies in. Nothing else
+     *            should be stored there.
+     * @param maxBytes The maximum total size of the copies.
+     */
+    public UriFileCache(Context context, File directory, long maxBytes) {
+        mContext = context.getApplicationContext();
+        mDirectory = directory;
+        mMaxBytes = maxBytes;
+    }
+
+    /**
+     * Start getting the local file of a Uri.
+     *
+     * @param uri The Uri, which must be readable with
+     *            {@link ContentResolver#openInputStream(Uri)}.
+     * @param callback The callback to report progress and the file to.
+     * @return The request, which can be cancelled.
+     */
+    public Request getFile(Uri uri, Callback callback) {
+        final Request request = new Request(uri, callback);
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                request.run();
+            }
+        });
+        return request;
+    }
+
+    /**
+     * Drop all copies.
+     */
+    public void clear() {
+        getDiskCache().clear();
+    }
+
+    /**
+     * @return The cache holding the copies, opened on first use since that
+     *         lists its directory.
+     */
+    public synchronized DiskCache getDiskCache() {
+        if (mCache == null)
+            mCache = new DiskCache(mDirectory, mMaxBytes);
+        return mCache;
+    }
+
+    /**
+     * @return The local file of the Uri, or null if the request was
+     *         cancelled.
+     */
+    private File getFile(Request request) throws IOException {
+        final Uri uri = request.mUri;
+
+        // Uris with a readable path need no copy
+        String path = null;
+        try {
+            path = FileUtils.getPath(mContext, uri);
+        } catch (RuntimeException e) {
+            // Providers without a _data column throw
+        }
+        if (path != null && FileUtils.isLocal(path)) {
+            final File file = new File(path);
+            if (file.canRead())
+                return file;
+        }
+
+        final DiskCache cache = getDiskCache();
+        final Metadata metadata = queryMetadata(uri);
+        final String key = uri + "|" + metadata.size + "|" + metadata.lastModified;
+        final String suffix = getSuffix(metadata.displayName);
+        // Without a size or time, a changed file could not be told apart
+        if (metadata.size >= 0 || metadata.lastModified > 0) {
+            final File cached = cache.get(key, suffix, true);
+            if (cached != null) {
+                request.setCopy(cached, true);
+                return cached;
+            }
+        }
+
+        final File temp = cache.newTempFile();
+        boolean copied = false;
+        try {
+            copied = copy(request, temp, metadata.size);
+        } finally {
+            if (!copied)
+                temp.delete();
+        }
+        if (!copied)
+            return null;
+
+        if (temp.length() > cache.maxSize()) {
+            // Too large to keep; deleted on release, or when the cache is
+            // next opened
+            request.setCopy(temp, false);
+            return temp;
+        }
+        final File file = cache.put(key, suffix, temp, true);
+        if (file == null)
+            throw new IOException("Could not store the copy of " + uri);
+        request.setCopy(file, true);
+        return file;
+    }
+
+    /**
+     * Copy the content of a Uri into a file.
+     *
+     * @return Whether the copy completed, or false if it was cancelled.
+     */
+    private boolean copy(Request request, File target, long totalBytes) throws IOException {
+        final ContentResolver resolver = mContext.getContentResolver();
+        ParcelFileDescriptor pfd = null;
+        try {
+            // Only whole files can be opened this way
+            pfd = resolver.openFileDescriptor(request.mUri, "r");
+        } catch (FileNotFoundException e) {
+            // Fall back to the stream
+        }
+        final InputStream in = pfd != null ? new ParcelFileDescriptor.AutoCloseInputStream(pfd)
+                : resolver.openInputStream(request.mUri);
+        if (in == null)
+            throw new FileNotFoundException("Could not open " + request.mUri);
+        final FileOutputStream out = new FileOutputStream(target);
+        try {
+            final FileChannel outChannel = out.getChannel();
+            long position = 0;
+
+            // A pipe has no size, and transferFrom would copy nothing from it
+            if (pfd != null && pfd.getStatSize() >= 0) {
+                final FileChannel inChannel = ((FileInputStream) in).getChannel();
+                long transferred;
+                while ((transferred = outChannel.transferFrom(inChannel, position,
+                        TRANSFER_BYTES)) > 0) {
+                    position += transferred;
+                    if (request.mCancelled)
+                        return false;
+                    request.postProgress(position, totalBytes, false);
+                }
+            } else {
+                final ReadableByteChannel inChannel = Channels.newChannel(in);
+                final ByteBuffer buffer = mBuffer.get();
+                buffer.clear();
+                while (inChannel.read(buffer) >= 0) {
+                    buffer.flip();
+                    while (buffer.hasRemaining())
+                        position += outChannel.write(buffer);
+                    buffer.clear();
+                    if (request.mCancelled)
+                        return false;
+                    request.postProgress(position, totalBytes, false);
+                }
+            }
+            request.postProgress(position, totalBytes, true);
+            return true;
+        } finally {
+            try {
+                in.close();
+            } catch (IOException e) {
+                // Ignore
+            }
+            out.close();
+        }
+    }
+
+    private Metadata queryMetadata(Uri uri) {
+        final Metadata metadata = new Metadata();
+        final boolean document = Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT
+                && DocumentsContract.isDocumentUri(mContext, uri);
+        final String[] projection = document ? new String[] {
+                OpenableColumns.DISPLAY_NAME, OpenableColumns.SIZE,
+                DocumentsContract.Document.COLUMN_LAST_MODIFIED
+        } : new String[] {
+                OpenableColumns.DISPLAY_NAME, OpenableColumns.SIZE
+        };
+
+        Cursor cursor = null;
+        try {
+            cursor = mContext.getContentResolver().query(uri, projection, null, null, null);
+            if (cursor != null && cursor.moveToFirst()) {
+                metadata.displayName = cursor.getString(0);
+                if (!cursor.isNull(1))
+                    metadata.size = cursor.getLong(1);
+                if (document && !cursor.isNull(2))
+                    metadata.lastModified = cursor.getLong(2);
+            }
+        } catch (RuntimeException e) {
+            // Not all providers support these columns; copy without them
+        } finally {
+            if (cursor != null)
+                cursor.close();
+        }
+        return metadata;
+    }
+
+    /**
+     * @return The extension of a display name, if it is a short plain one,
+     *         so the copy keeps its type.
+     */
+    private static String getSuffix(String displayName) {
+        if (displayName == null)
+            return "";
+        final String extension = FileUtils.getExtension(displayName);
+        if (extension.length() < 2 || extension.length() > 10)
+            return "";
+        for (int i = 1; i < extension.length(); i++) {
+            if (!Character.isLetterOrDigit(extension.charAt(i)))
+                return "";
+        }
+        return extension;
+    }
+}
@@ -0,0 +1,305 @@
+/*
+ * Copyright (C) 2013 Paul Burke
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ipaulpro.afilechooser.utils;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Build;
+import android.os.SystemClock;
+import android.provider.DocumentsContract;
+import android.provider.MediaStore;
+import android.support.v4.util.LruCache;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Process-wide cache of the file paths of Uris, behind
+ * {@link FileUtils#getPath(Context, Uri)}. Resolving a MediaStore or Downloads
+ * Uri costs a query to another process, so each Uri is only resolved once,
+ * and {@link #getPaths(Context, List)} resolves the Uris of the same
+ * MediaStore table with one "_id IN (...)" query instead of one query each.
+ * DownloadsProvider only answers single-row queries, so Downloads Uris are
+ * resolved one by one.<br>
+ * <br>
+ * A row can gain a path or change it later, so cached answers expire after
+ * {@link #MAX_AGE_MILLIS}, and a cached path whose file no longer exists is
+ * resolved again.
+ *
+ * @version 2013-12-11
+ * @author paulburke (ipaulpro)
+ */
+public class UriPathResolver {
+    private UriPathResolver() {} //private constructor to enforce Singleton pattern
+
+    /** Maximum number of Uris whose path is remembered. */
+    public static final int MAX_ENTRIES = 1000;
+
+    /** Maximum number of ids in a single query. */
+    public static final int MAX_IDS_PER_QUERY = 500;
+
+    /** Time after which a cached path is resolved again, in milliseconds. */
+    public static final long MAX_AGE_MILLIS = 60 * 1000;
+
+    /**
+     * The path of a Uri, or null if it has none, and when it was resolved.
+     */
+    private static class Entry {
+        final String path;
+        final long time;
+
+        Entry(String path) {
+            this.path = path;
+            this.time = SystemClock.uptimeMillis();
+        }
+    }
+
+    private static final AtomicInteger sQueryCount = new AtomicInteger();
+    private static final AtomicInteger sStaleCount = new AtomicInteger();
+
+    private static final LruCache<Uri, Entry> sCache = new LruCache<Uri, Entry>(MAX_ENTRIES);
+
+    /**
+     * Get the file path of a Uri, from the cache if possible.
+     *
+     * @param context The context.
+     * @param uri The Uri to resolve.
+     * @return The path, or null if the Uri has none.
+     * @see FileUtils#getPath(Context, Uri)
+     */
+    public static String getPath(Context context, Uri uri) {
+        final Entry cached = getEntry(uri);
+        if (cached != null)
+            return cached.path;
+
+        final String path = FileUtils.queryPath(context, uri);
+        sCache.put(uri, new Entry(path));
+        return path;
+    }
+
+    /**
+     * Get the file paths of many Uris, for example a multiple selection. Uris
+     * of MediaStore tables are resolved with one query per table, and others
+     * one by one.
+     *
+     * @param context The context.
+     * @param uris The Uris to resolve.
+     * @return The paths, in the order of uris, with null for Uris that have
+     *         none.
+     */
+    public static List<String> getPaths(Context context, List<Uri> uris) {
+        final String[] paths = new String[uris.size()];
+        // Ids to look up, by the table Uri to query
+        final LinkedHashMap<Uri, Map<Long, List<Integer>>> tables =
+                new LinkedHashMap<Uri, Map<Long, List<Integer>>>();
+
+        for (int i = 0; i < paths.length; i++) {
+            final Uri uri = uris.get(i);
+            final Entry cached = getEntry(uri);
+            if (cached != null) {
+                paths[i] = cached.path;
+                continue;
+            }
+
+            final Uri table = getTable(context, uri);
+            final long id = table != null ? getId(context, uri) : -1;
+            if (id < 0) {
+                paths[i] = FileUtils.queryPath(context, uri);
+                sCache.put(uri, new Entry(paths[i]));
+                continue;
+            }
+            Map<Long, List<Integer>> ids = tables.get(table);
+            if (ids == null) {
+                ids = new LinkedHashMap<Long, List<Integer>>();
+                tables.put(table, ids);
+            }
+            List<Integer> positions = ids.get(id);
+            if (positions == null) {
+                positions = new ArrayList<Integer>(1);
+                ids.put(id, positions);
+            }
+            positions.add(i);
+        }
+
+        for (Map.Entry<Uri, Map<Long, List<Integer>>> table : tables.entrySet()) {
+            final Long[] ids = table.getValue().keySet().toArray(new Long[0]);
+            for (int start = 0; start < ids.length; start += MAX_IDS_PER_QUERY) {
+                final Long[] chunk = new Long[Math.min(MAX_IDS_PER_QUERY, ids.length - start)];
+                System.arraycopy(ids, start, chunk, 0, chunk.length);
+                Map<Long, String> found;
+                try {
+                    found = queryPaths(context, table.getKey(), chunk);
+                } catch (RuntimeException e) {
+                    // A provider that rejects the selection is asked one Uri at a time
+                    found = null;
+                }
+                for (Long id : chunk) {
+                    for (int position : table.getValue().get(id)) {
+                        final String path = found != null ? found.get(id)
+                                : FileUtils.queryPath(context, uris.get(position));
+                        paths[position] = path;
+                        sCache.put(uris.get(position), new Entry(path));
+                    }
+                }
+            }
+        }
+
+        return new ArrayList<String>(Arrays.asList(paths));
+    }
+
+    /**
+     * Drop all cached paths.
+     */
+    public static void clear() {
+        sCache.evictAll();
+    }
+
+    /**
+     * @return The number of times a Uri was in the cache, including stale
+     *         entries.
+     */
+    public static int getHitCount() {
+        return sCache.hitCount();
+    }
+
+    /**
+     * @return The number of times a Uri was not in the cache.
+     */
+    public static int getMissCount() {
+        return sCache.missCount();
+    }
+
+    /**
+     * @return The number of queries made to resolve Uris, each a round trip
+     *         to another process.
+     */
+    public static int getQueryCount() {
+        return sQueryCount.get();
+    }
+
+    /**
+     * @return The number of cached paths resolved again because they expired
+     *         or their file was gone.
+     */
+    public static int getStaleCount() {
+        return sStaleCount.get();
+    }
+
+    static void countQuery() {
+        sQueryCount.incrementAndGet();
+    }
+
+    /**
+     * @return The cached entry of a Uri, or null if there is none or it is
+     *         stale.
+     */
+    private static Entry getEntry(Uri uri) {
+        final Entry entry = sCache.get(uri);
+        if (entry == null)
+            return null;
+        if (SystemClock.uptimeMillis() - entry.time < MAX_AGE_MILLIS
+                && (entry.path == null || !FileUtils.isLocal(entry.path)
+                        || new File(entry.path).exists()))
+            return entry;
+
+        sCache.remove(uri);
+        sStaleCount.incrementAndGet();
+        return null;
+    }
+
+    /**
+     * @return The MediaStore table holding the row of a document or
+     *         MediaStore Uri, or null if it is resolved another way.
+     */
+    private static Uri getTable(Context context, Uri uri) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT
+                && DocumentsContract.isDocumentUri(context, uri)) {
+            if (FileUtils.isMediaDocument(uri)) {
+                final String type = DocumentsContract.getDocumentId(uri).split(":")[0];
+                if ("image".equals(type))
+                    return MediaStore.Images.Media.EXTERNAL_CONTENT_URI;
+                if ("video".equals(type))
+                    return MediaStore.Video.Media.EXTERNAL_CONTENT_URI;
+                if ("audio".equals(type))
+                    return MediaStore.Audio.Media.EXTERNAL_CONTENT_URI;
+            }
+            return null;
+        }
+        // A MediaStore item, such as content://media/external/images/media/42
+        if (FileUtils.isMediaUri(uri) && uri.getPathSegments().size() > 1) {
+            final String path = uri.getPath();
+            return uri.buildUpon().path(path.substring(0, path.lastIndexOf('/'))).build();
+        }
+        return null;
+    }
+
+    /**
+     * @return The row id of a Uri whose table is known, or -1 if it has none.
+     */
+    private static long getId(Context context, Uri uri) {
+        final String id;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT
+                && DocumentsContract.isDocumentUri(context, uri)) {
+            final String docId = DocumentsContract.getDocumentId(uri);
+            id = docId.substring(docId.indexOf(':') + 1);
+        } else {
+            id = uri.getLastPathSegment();
+        }
+        try {
+            return Long.parseLong(id);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * @return The paths of the rows with the given ids, by id.
+     */
+    private static Map<Long, String> queryPaths(Context context, Uri table, Long[] ids) {
+        // Ids are parsed numbers, so they can be written into the selection
+        final StringBuilder selection = new StringBuilder(ids.length * 8 + 16);
+        selection.append("_id IN (");
+        for (int i = 0; i < ids.length; i++) {
+            if (i > 0)
+                selection.append(',');
+            selection.append(ids[i].longValue());
+        }
+        selection.append(')');
+
+        final HashMap<Long, String> paths = new HashMap<Long, String>(ids.length * 2);
+        Cursor cursor = null;
+        try {
+            countQuery();
+            cursor = context.getContentResolver().query(table, new String[] {
+                    "_id", "_data"
+            }, selection.toString(), null, null);
+            while (cursor != null && cursor.moveToNext())
+                paths.put(cursor.getLong(0), cursor.getString(1));
+        } finally {
+            if (cursor != null)
+                cursor.close();
+        }
+        return paths;
+    }
+}
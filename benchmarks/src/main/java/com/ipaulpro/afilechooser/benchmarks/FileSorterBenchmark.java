@@ -0,0 +1,138 @@
+/*
+ * Copyright (C) 2013 Paul Burke
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ipaulpro.afilechooser.benchmarks;
+
+import com.ipaulpro.afilechooser.utils.FileEntry;
+import com.ipaulpro.afilechooser.utils.FileSorter;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sorting a listing by name: the comparator FileUtils used before
+ * {@link FileSorter}, which lower-cases both names in every comparison, the
+ * allocation-free comparator FileUtils uses now, and
+ * {@link FileSorter#sort(List, int)}, which lower-cases each name once.<br>
+ * <br>
+ * Each benchmark sorts a fresh copy of the same shuffled listing, so the
+ * copy is part of every score.
+ *
+ * @version 2013-12-11
+ * @author paulburke (ipaulpro)
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FileSorterBenchmark {
+
+    /** Number of entries in the listing. */
+    @Param({
+            "1000", "10000", "100000"
+    })
+    public int size;
+
+    private static final String[] EXTENSIONS = {
+            "jpg", "JPG", "png", "mp3", "mp4", "pdf", "txt", "apk", "zip", ""
+    };
+
+    private static final Comparator<FileEntry> sLowerCaseComparator = new Comparator<FileEntry>() {
+        @Override
+        public int compare(FileEntry f1, FileEntry f2) {
+            return f1.getName().toLowerCase().compareTo(
+                    f2.getName().toLowerCase());
+        }
+    };
+
+    private static final Comparator<FileEntry> sCompareNamesComparator = new Comparator<FileEntry>() {
+        @Override
+        public int compare(FileEntry f1, FileEntry f2) {
+            return FileSorter.compareNames(f1.getName(), f2.getName());
+        }
+    };
+
+    private List<FileEntry> mListing;
+
+    @Setup
+    public void setUp() {
+        // The same listing on every run, with names like "IMG_20131211_4213.jpg"
+        final Random random = new Random(42);
+        final File parent = new File("/storage/emulated/0/DCIM");
+        mListing = new ArrayList<FileEntry>(size);
+        for (int i = 0; i < size; i++) {
+            final StringBuilder name = new StringBuilder(24);
+            final int words = 1 + random.nextInt(3);
+            for (int w = 0; w < words; w++) {
+                if (w > 0)
+                    name.append(random.nextBoolean() ? '_' : ' ');
+                final int length = 2 + random.nextInt(8);
+                final boolean upper = random.nextInt(4) == 0;
+                for (int c = 0; c < length; c++) {
+                    final char letter = (char) ('a' + random.nextInt(26));
+                    name.append(upper || c == 0 && random.nextBoolean()
+                            ? Character.toUpperCase(letter) : letter);
+                }
+            }
+            name.append('_').append(random.nextInt(100000));
+            final String extension = EXTENSIONS[random.nextInt(EXTENSIONS.length)];
+            if (extension.length() > 0)
+                name.append('.').append(extension);
+            mListing.add(new FileEntry(new File(parent, name.toString()), false,
+                    random.nextInt(1 << 24), 1386720000000L + random.nextInt()));
+        }
+    }
+
+    @Benchmark
+    public List<FileEntry> lowerCaseComparator() {
+        final List<FileEntry> entries = new ArrayList<FileEntry>(mListing);
+        Collections.sort(entries, sLowerCaseComparator);
+        return entries;
+    }
+
+    @Benchmark
+    public List<FileEntry> compareNamesComparator() {
+        final List<FileEntry> entries = new ArrayList<FileEntry>(mListing);
+        Collections.sort(entries, sCompareNamesComparator);
+        return entries;
+    }
+
+    @Benchmark
+    public List<FileEntry> fileSorter() {
+        final List<FileEntry> entries = new ArrayList<FileEntry>(mListing);
+        FileSorter.sort(entries, FileSorter.SORT_BY_NAME);
+        return entries;
+    }
+}